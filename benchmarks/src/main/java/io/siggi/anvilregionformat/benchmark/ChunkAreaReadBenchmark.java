@@ -0,0 +1,68 @@
+package io.siggi.anvilregionformat.benchmark;
+
+import io.siggi.anvilregionformat.AnvilRegion;
+import io.siggi.anvilregionformat.ChunkCoordinate;
+import io.siggi.anvilregionformat.ChunkData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a whole region from a pre-populated region directory at once with readMany.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChunkAreaReadBenchmark {
+    @Param({"SMALL", "TYPICAL"})
+    public ChunkSizes sizes;
+
+    private File directory;
+    private AnvilRegion region;
+    private List<ChunkCoordinate> area;
+    private long areaSize;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = RegionFixture.createDirectory();
+        area = RegionFixture.chunks(1);
+        RegionFixture.populate(directory, area, sizes, 1L);
+        region = AnvilRegion.open(directory);
+        for (ChunkCoordinate chunk : area) {
+            areaSize += region.read(chunk).getData().length;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        region.close();
+        RegionFixture.delete(directory);
+    }
+
+    @Benchmark
+    public Map<ChunkCoordinate, ChunkData> readArea(ByteCounter counter) throws IOException {
+        Map<ChunkCoordinate, ChunkData> data = region.readMany(area, new HashMap<>());
+        counter.bytes += areaSize;
+        return data;
+    }
+}
@@ -0,0 +1,80 @@
+package io.siggi.anvilregionformat.benchmark;
+
+import io.siggi.anvilregionformat.AnvilRegion;
+import io.siggi.anvilregionformat.ChunkCoordinate;
+import io.siggi.anvilregionformat.ChunkData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads chunks one at a time from a pre-populated region directory in random or sequential order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChunkReadBenchmark {
+    @Param({"SMALL", "TYPICAL"})
+    public ChunkSizes sizes;
+
+    @Param({"2"})
+    public int regionsPerSide;
+
+    @Param({"random", "sequential"})
+    public String order;
+
+    private File directory;
+    private AnvilRegion region;
+    private ChunkCoordinate[] chunks;
+    private int[] chunkSizes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = RegionFixture.createDirectory();
+        List<ChunkCoordinate> chunkList = RegionFixture.chunks(regionsPerSide);
+        RegionFixture.populate(directory, chunkList, sizes, 1L);
+        if (order.equals("random"))
+            Collections.shuffle(chunkList, new Random(2L));
+        chunks = chunkList.toArray(new ChunkCoordinate[0]);
+        region = AnvilRegion.open(directory);
+        chunkSizes = new int[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            chunkSizes[i] = region.read(chunks[i]).getData().length;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        region.close();
+        RegionFixture.delete(directory);
+    }
+
+    @Benchmark
+    public ChunkData read(ByteCounter counter) throws IOException {
+        ChunkData data = region.read(chunks[next]);
+        counter.bytes += chunkSizes[next];
+        next = (next + 1) % chunks.length;
+        return data;
+    }
+}
@@ -0,0 +1,33 @@
+package io.siggi.anvilregionformat.benchmark;
+
+import java.util.Random;
+
+/**
+ * Uncompressed chunk size distributions used by the benchmarks.
+ */
+public enum ChunkSizes {
+    /**
+     * Mostly empty chunks, such as ocean or void worlds.
+     */
+    SMALL(4 * 1024, 16 * 1024),
+    /**
+     * Chunk sizes typical of a generated overworld.
+     */
+    TYPICAL(16 * 1024, 96 * 1024),
+    /**
+     * Heavily built chunks.
+     */
+    LARGE(256 * 1024, 1024 * 1024);
+
+    private final int min;
+    private final int max;
+
+    ChunkSizes(int min, int max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    public int next(Random random) {
+        return min + random.nextInt(max - min);
+    }
+}
@@ -0,0 +1,97 @@
+package io.siggi.anvilregionformat.benchmark;
+
+import io.siggi.anvilregionformat.AnvilUtil;
+import io.siggi.anvilregionformat.ChunkData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures the ChunkData and AnvilUtil codecs on their own, without any file IO.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CompressionBenchmark {
+    private static final int SAMPLE_COUNT = 16;
+
+    @Param({"SMALL", "TYPICAL", "LARGE"})
+    public ChunkSizes sizes;
+
+    private byte[][] uncompressed;
+    private ChunkData[] zlib;
+    private ChunkData[] gzip;
+    private byte[][] gzipBytes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(1L);
+        uncompressed = new byte[SAMPLE_COUNT][];
+        zlib = new ChunkData[SAMPLE_COUNT];
+        gzip = new ChunkData[SAMPLE_COUNT];
+        gzipBytes = new byte[SAMPLE_COUNT][];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            uncompressed[i] = RegionFixture.uncompressedChunk(random, sizes.next(random));
+            zlib[i] = ChunkData.create(AnvilUtil.zlibCompress(uncompressed[i]), ChunkData.COMPRESSION_TYPE_ZLIB, 0);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+                gzipOut.write(uncompressed[i]);
+            }
+            gzipBytes[i] = out.toByteArray();
+            gzip[i] = ChunkData.create(gzipBytes[i], ChunkData.COMPRESSION_TYPE_GZIP, 0);
+        }
+    }
+
+    private int nextSample() {
+        int sample = next;
+        next = (next + 1) % SAMPLE_COUNT;
+        return sample;
+    }
+
+    @Benchmark
+    public byte[] zlibDecompress(ByteCounter counter) {
+        byte[] data = zlib[nextSample()].getDecompressedData();
+        counter.bytes += data.length;
+        return data;
+    }
+
+    @Benchmark
+    public byte[] gzipDecompress(ByteCounter counter) {
+        byte[] data = gzip[nextSample()].getDecompressedData();
+        counter.bytes += data.length;
+        return data;
+    }
+
+    @Benchmark
+    public byte[] zlibCompress(ByteCounter counter) {
+        byte[] data = uncompressed[nextSample()];
+        counter.bytes += data.length;
+        return AnvilUtil.zlibCompress(data);
+    }
+
+    @Benchmark
+    public byte[] convertGzipToZlib(ByteCounter counter) {
+        byte[] data = gzipBytes[nextSample()];
+        counter.bytes += data.length;
+        return AnvilUtil.convertGzipToZlib(data);
+    }
+}
@@ -0,0 +1,81 @@
+package io.siggi.anvilregionformat.benchmark;
+
+import io.siggi.anvilregionformat.AnvilRegion;
+import io.siggi.anvilregionformat.ChunkCoordinate;
+import io.siggi.anvilregionformat.ChunkData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads one chunk at a time from randomly chosen region files, so that a small maxCache forces region files to be
+ * opened and evicted constantly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FileOpenBenchmark {
+    private static final int ACCESS_COUNT = 4096;
+
+    @Param({"1", "16", "64"})
+    public int maxCache;
+
+    @Param({"8"})
+    public int regionsPerSide;
+
+    private File directory;
+    private AnvilRegion region;
+    private ChunkCoordinate[] accesses;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = RegionFixture.createDirectory();
+        List<ChunkCoordinate> chunkList = new ArrayList<>();
+        for (int z = 0; z < regionsPerSide; z++) {
+            for (int x = 0; x < regionsPerSide; x++) {
+                chunkList.add(new ChunkCoordinate(x * 32, z * 32));
+            }
+        }
+        RegionFixture.populate(directory, chunkList, ChunkSizes.SMALL, 1L);
+        Random random = new Random(2L);
+        accesses = new ChunkCoordinate[ACCESS_COUNT];
+        for (int i = 0; i < ACCESS_COUNT; i++) {
+            accesses[i] = chunkList.get(random.nextInt(chunkList.size()));
+        }
+        region = AnvilRegion.open(directory, maxCache);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        region.close();
+        RegionFixture.delete(directory);
+    }
+
+    @Benchmark
+    public ChunkData read() throws IOException {
+        ChunkData data = region.read(accesses[next]);
+        next = (next + 1) % ACCESS_COUNT;
+        return data;
+    }
+}
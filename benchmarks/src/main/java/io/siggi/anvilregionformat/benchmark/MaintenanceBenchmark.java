@@ -0,0 +1,76 @@
+package io.siggi.anvilregionformat.benchmark;
+
+import io.siggi.anvilregionformat.AnvilCoordinate;
+import io.siggi.anvilregionformat.AnvilRegion;
+import io.siggi.anvilregionformat.ChunkCoordinate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compacts and erases free space in a single fragmented region file. Every invocation gets a freshly fragmented
+ * copy, so these are measured as single shots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 10, batchSize = 1)
+public class MaintenanceBenchmark {
+    private static final AnvilCoordinate REGION = new AnvilCoordinate(0, 0);
+
+    @Param({"SMALL", "TYPICAL"})
+    public ChunkSizes sizes;
+
+    private File directory;
+    private AnvilRegion region;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        directory = RegionFixture.createDirectory();
+        List<ChunkCoordinate> chunks = RegionFixture.chunks(1);
+        RegionFixture.populate(directory, chunks, sizes, 1L);
+        region = AnvilRegion.open(directory);
+        Random random = new Random(2L);
+        for (int i = 0; i < chunks.size(); i++) {
+            if (i % 2 == 0) {
+                region.write(chunks.get(i), null);
+            } else if (i % 3 == 0) {
+                region.write(chunks.get(i), RegionFixture.chunk(random, sizes));
+            }
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        region.close();
+        RegionFixture.delete(directory);
+    }
+
+    @Benchmark
+    public void compact() throws IOException {
+        region.compact(REGION);
+    }
+
+    @Benchmark
+    public void eraseFreeSpace() throws IOException {
+        region.eraseFreeSpace(REGION);
+    }
+}
@@ -0,0 +1,102 @@
+package io.siggi.anvilregionformat.benchmark;
+
+import io.siggi.anvilregionformat.AnvilRegion;
+import io.siggi.anvilregionformat.AnvilUtil;
+import io.siggi.anvilregionformat.ChunkCoordinate;
+import io.siggi.anvilregionformat.ChunkData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic region directories for the benchmarks.
+ */
+public final class RegionFixture {
+    private RegionFixture() {
+    }
+
+    public static File createDirectory() throws IOException {
+        return Files.createTempDirectory("anvil-benchmark").toFile();
+    }
+
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Get the coordinates of every chunk in a square of regions starting at region 0,0, in x then z order.
+     *
+     * @param regionsPerSide the number of regions along each side of the square
+     * @return the chunk coordinates
+     */
+    public static List<ChunkCoordinate> chunks(int regionsPerSide) {
+        List<ChunkCoordinate> chunks = new ArrayList<>();
+        int chunksPerSide = regionsPerSide * 32;
+        for (int z = 0; z < chunksPerSide; z++) {
+            for (int x = 0; x < chunksPerSide; x++) {
+                chunks.add(new ChunkCoordinate(x, z));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Create uncompressed chunk data that compresses about as well as real chunk NBT, which is a mix of long runs
+     * and noise.
+     *
+     * @param random the random number generator to use
+     * @param size   the uncompressed size
+     * @return the data
+     */
+    public static byte[] uncompressedChunk(Random random, int size) {
+        byte[] data = new byte[size];
+        int i = 0;
+        while (i < size) {
+            int run = Math.min(size - i, 1 + random.nextInt(64));
+            if (random.nextInt(3) == 0) {
+                byte value = (byte) random.nextInt(16);
+                for (int j = 0; j < run; j++) {
+                    data[i++] = value;
+                }
+            } else {
+                for (int j = 0; j < run; j++) {
+                    data[i++] = (byte) random.nextInt(256);
+                }
+            }
+        }
+        return data;
+    }
+
+    public static ChunkData chunk(Random random, ChunkSizes sizes) {
+        byte[] compressed = AnvilUtil.zlibCompress(uncompressedChunk(random, sizes.next(random)));
+        return ChunkData.create(compressed, ChunkData.COMPRESSION_TYPE_ZLIB, (int) (System.currentTimeMillis() / 1000L));
+    }
+
+    /**
+     * Write a chunk to each of the specified coordinates.
+     *
+     * @param directory the directory to write region files into
+     * @param chunks    the coordinates to write chunks to
+     * @param sizes     the chunk size distribution
+     * @param seed      the seed for the generated data
+     * @throws IOException if an IO error occurs
+     */
+    public static void populate(File directory, List<ChunkCoordinate> chunks, ChunkSizes sizes, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (AnvilRegion region = AnvilRegion.open(directory)) {
+            for (ChunkCoordinate chunk : chunks) {
+                region.write(chunk, chunk(random, sizes));
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package io.siggi.anvilregionformat.jfr;
+
+import io.siggi.anvilregionformat.AnvilCoordinate;
+import io.siggi.anvilregionformat.AnvilMetrics;
+import io.siggi.anvilregionformat.ChunkCoordinate;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * AnvilMetrics that emits JDK Flight Recorder events, which can be enabled and inspected with the usual JFR tooling.
+ * Cache hits are not emitted since they would flood the recording, the ratio can be derived from the file open
+ * events instead.
+ * <p>
+ * AnvilMetrics are only called once an operation has finished, with the time it took, so the events can't be timed
+ * with {@code begin()} and {@code end()}. Their JFR duration is zero and the measured time is in the Time field
+ * instead, which means the threshold setting of a recording can't filter them. Pass a threshold to
+ * {@link #JfrAnvilMetrics(long)} to only emit operations that took at least that long.
+ */
+public class JfrAnvilMetrics implements AnvilMetrics {
+    private final long thresholdNanos;
+
+    /**
+     * Create a JfrAnvilMetrics that emits every operation.
+     */
+    public JfrAnvilMetrics() {
+        this(0L);
+    }
+
+    /**
+     * Create a JfrAnvilMetrics that only emits timed operations that took at least a given time.
+     *
+     * @param thresholdNanos the minimum time in nanoseconds an operation must take to be emitted
+     */
+    public JfrAnvilMetrics(long thresholdNanos) {
+        this.thresholdNanos = thresholdNanos;
+    }
+
+    @Override
+    public void fileOpened(AnvilCoordinate coordinate, long nanos) {
+        if (nanos < thresholdNanos)
+            return;
+        FileOpenEvent event = new FileOpenEvent();
+        if (!event.isEnabled())
+            return;
+        event.regionX = coordinate.x;
+        event.regionZ = coordinate.z;
+        event.time = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void fileEvicted(AnvilCoordinate coordinate) {
+        FileEvictEvent event = new FileEvictEvent();
+        if (!event.isEnabled())
+            return;
+        event.regionX = coordinate.x;
+        event.regionZ = coordinate.z;
+        event.commit();
+    }
+
+    @Override
+    public void chunkRead(ChunkCoordinate coordinate, int bytes, long nanos) {
+        if (nanos < thresholdNanos)
+            return;
+        ChunkReadEvent event = new ChunkReadEvent();
+        if (!event.isEnabled())
+            return;
+        event.chunkX = coordinate.x;
+        event.chunkZ = coordinate.z;
+        event.bytes = bytes;
+        event.time = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void chunkWritten(ChunkCoordinate coordinate, int bytes, long nanos) {
+        if (nanos < thresholdNanos)
+            return;
+        ChunkWriteEvent event = new ChunkWriteEvent();
+        if (!event.isEnabled())
+            return;
+        event.chunkX = coordinate.x;
+        event.chunkZ = coordinate.z;
+        event.bytes = bytes;
+        event.time = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void sectorsAllocated(AnvilCoordinate coordinate, int sectorCount, long nanos) {
+        if (nanos < thresholdNanos)
+            return;
+        SectorAllocationEvent event = new SectorAllocationEvent();
+        if (!event.isEnabled())
+            return;
+        event.regionX = coordinate.x;
+        event.regionZ = coordinate.z;
+        event.sectorCount = sectorCount;
+        event.time = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void compacted(AnvilCoordinate coordinate, long nanos) {
+        if (nanos < thresholdNanos)
+            return;
+        CompactionEvent event = new CompactionEvent();
+        if (!event.isEnabled())
+            return;
+        event.regionX = coordinate.x;
+        event.regionZ = coordinate.z;
+        event.time = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void decompressed(int compressionType, int compressedBytes, int decompressedBytes, long nanos) {
+        if (nanos < thresholdNanos)
+            return;
+        DecompressionEvent event = new DecompressionEvent();
+        if (!event.isEnabled())
+            return;
+        event.compressionType = compressionType;
+        event.compressedBytes = compressedBytes;
+        event.decompressedBytes = decompressedBytes;
+        event.time = nanos;
+        event.commit();
+    }
+
+    @Name("io.siggi.anvilregionformat.FileOpen")
+    @Label("Anvil File Open")
+    @Category("Anvil Region Format")
+    static class FileOpenEvent extends Event {
+        @Label("Region X")
+        int regionX;
+        @Label("Region Z")
+        int regionZ;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("io.siggi.anvilregionformat.FileEvict")
+    @Label("Anvil File Evict")
+    @Category("Anvil Region Format")
+    static class FileEvictEvent extends Event {
+        @Label("Region X")
+        int regionX;
+        @Label("Region Z")
+        int regionZ;
+    }
+
+    @Name("io.siggi.anvilregionformat.ChunkRead")
+    @Label("Anvil Chunk Read")
+    @Category("Anvil Region Format")
+    static class ChunkReadEvent extends Event {
+        @Label("Chunk X")
+        int chunkX;
+        @Label("Chunk Z")
+        int chunkZ;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("io.siggi.anvilregionformat.ChunkWrite")
+    @Label("Anvil Chunk Write")
+    @Category("Anvil Region Format")
+    static class ChunkWriteEvent extends Event {
+        @Label("Chunk X")
+        int chunkX;
+        @Label("Chunk Z")
+        int chunkZ;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("io.siggi.anvilregionformat.SectorAllocation")
+    @Label("Anvil Sector Allocation")
+    @Category("Anvil Region Format")
+    static class SectorAllocationEvent extends Event {
+        @Label("Region X")
+        int regionX;
+        @Label("Region Z")
+        int regionZ;
+        @Label("Sector Count")
+        int sectorCount;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("io.siggi.anvilregionformat.Compaction")
+    @Label("Anvil Compaction")
+    @Category("Anvil Region Format")
+    static class CompactionEvent extends Event {
+        @Label("Region X")
+        int regionX;
+        @Label("Region Z")
+        int regionZ;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("io.siggi.anvilregionformat.Decompression")
+    @Label("Anvil Decompression")
+    @Category("Anvil Region Format")
+    static class DecompressionEvent extends Event {
+        @Label("Compression Type")
+        int compressionType;
+        @Label("Compressed Bytes")
+        @DataAmount
+        int compressedBytes;
+        @Label("Decompressed Bytes")
+        @DataAmount
+        int decompressedBytes;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+}
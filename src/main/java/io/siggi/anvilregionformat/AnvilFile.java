@@ -2,49 +2,94 @@ package io.siggi.anvilregionformat;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 class AnvilFile implements Closeable {
+    private static final byte EXTERNAL_UNKNOWN = 0;
+    private static final byte EXTERNAL_NO = 1;
+    private static final byte EXTERNAL_YES = 2;
+    private static final int MAX_READ_GAP_SECTORS = 4;
+    private static final int MAX_READ_SECTORS = 256;
+    // the header arrays and object overhead, not counting usedSectors
+    private static final long BASE_MEMORY_USAGE = (4L * 4096L) + 1024L + 1024L;
+
     private final AnvilCoordinate coordinate;
     private final File parent;
     private final File file;
+    private final boolean readOnly;
     private final RandomAccessFile raf;
-    private final InputStream rafIn;
-    private final OutputStream rafOut;
+    private final FileChannel channel;
     private final int[] offsets = new int[1024];
     private final int[] sizes = new int[1024];
     private final int[] editTimes = new int[1024];
-    private boolean[] usedSectors = new boolean[0];
+    private final byte[] external = new byte[1024];
+    // incremented before and after every change to a chunk, so it is odd while the chunk is being changed and readers
+    // outside the lock can tell that what they read went stale
+    private final AtomicIntegerArray generations = new AtomicIntegerArray(1024);
+    private int externalThreshold = 256;
+    private AnvilMetrics metrics;
+    private RegionIndex index;
+    private final BitSet usedSectors = new BitSet();
+    private int maxReadSectors = MAX_READ_SECTORS;
+    // the number of threads using this file outside the files lock, guarded by the files lock of the AnvilRegion
+    private int pins = 0;
     private final int minX;
     private final int minZ;
 
-    AnvilFile(AnvilCoordinate coordinate, File parent, File file) throws IOException {
+    AnvilFile(AnvilCoordinate coordinate, File parent, File file, boolean readOnly) throws IOException {
         this.coordinate = coordinate;
         this.parent = parent;
         this.file = file;
-        this.raf = new RandomAccessFile(file, "rwd");
-        this.rafIn = new RAFInputStream(raf);
-        this.rafOut = new RAFOutputStream(raf);
-        setUsed(0, 2, true);
-        if (raf.length() < 8192L) {
-            raf.setLength(8192L);
+        this.readOnly = readOnly;
+        if (readOnly) {
+            this.raf = null;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
         } else {
-            for (int i = 0; i < 1024; i++) {
-                offsets[i] = (raf.read() << 16) | (raf.read() << 8) | raf.read();
-                sizes[i] = raf.read();
-                setUsed(offsets[i], sizes[i], true);
-            }
-            for (int i = 0; i < 1024; i++) {
-                editTimes[i] = raf.readInt();
+            this.raf = new RandomAccessFile(file, "rwd");
+            this.channel = raf.getChannel();
+            setUsed(0, 2, true);
+        }
+        try {
+            long length = channel.size();
+            if (length < 8192L) {
+                if (!readOnly)
+                    raf.setLength(8192L);
+            } else {
+                // chunk writes are whole sectors, so the file stays sector aligned once it is
+                if (!readOnly && length % 4096L != 0L)
+                    raf.setLength(length + (4096L - (length % 4096L)));
+                ByteBuffer header = ByteBuffer.allocate(8192);
+                AnvilUtil.readFully(channel, header, 0L);
+                header.flip();
+                for (int i = 0; i < 1024; i++) {
+                    int location = header.getInt();
+                    offsets[i] = location >>> 8;
+                    sizes[i] = location & 0xff;
+                    if (!readOnly)
+                        setUsed(offsets[i], sizes[i], true);
+                }
+                for (int i = 0; i < 1024; i++) {
+                    editTimes[i] = header.getInt();
+                }
             }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (int i = 0; i < 1024; i++) {
+            external[i] = hasChunk(i) ? EXTERNAL_UNKNOWN : EXTERNAL_NO;
         }
         this.minX = coordinate.x << 5;
         this.minZ = coordinate.z << 5;
@@ -54,39 +99,60 @@ class AnvilFile implements Closeable {
         return coordinate;
     }
 
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    void pin() {
+        pins += 1;
+    }
+
+    void unpin() {
+        pins -= 1;
+    }
+
+    boolean isPinned() {
+        return pins > 0;
+    }
+
+    void setExternalThreshold(int externalThreshold) {
+        this.externalThreshold = externalThreshold;
+    }
+
+    void setMetrics(AnvilMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setIndex(RegionIndex index) {
+        this.index = index;
+    }
+
+    void setMaxReadSectors(int maxReadSectors) {
+        this.maxReadSectors = Math.max(1, Math.min(MAX_READ_SECTORS, maxReadSectors));
+    }
+
+    /**
+     * Get an estimate of the heap memory used by this AnvilFile.
+     */
+    long getMemoryUsage() {
+        return BASE_MEMORY_USAGE + (usedSectors.size() / 8);
+    }
+
     private void setUsed(int offset, int count, boolean used) {
         if (count == 0)
             return;
-        int minimumSize = offset + count;
-        if (usedSectors.length < minimumSize) {
-            usedSectors = Arrays.copyOf(usedSectors, minimumSize);
-        }
-        for (int i = 0; i < count; i++) {
-            usedSectors[offset + i] = used;
-        }
-    }
-
-    private boolean isSectorUsed(int index) {
-        return index < usedSectors.length && usedSectors[index];
+        usedSectors.set(offset, offset + count, used);
     }
 
     private int findFreeSpace(int sectorCount) {
         if (sectorCount <= 0) return 0;
         int offset = 0;
-        int firstFree = 0;
-        int freeCount = 0;
         while (true) {
-            if (isSectorUsed(offset)) {
-                freeCount = 0;
-            } else {
-                if (freeCount == 0) {
-                    firstFree = offset;
-                }
-                freeCount += 1;
-                if (freeCount >= sectorCount)
-                    return firstFree;
-            }
-            offset += 1;
+            int firstFree = usedSectors.nextClearBit(offset);
+            int nextUsed = usedSectors.nextSetBit(firstFree);
+            if (nextUsed == -1 || nextUsed - firstFree >= sectorCount)
+                return firstFree;
+            offset = nextUsed;
         }
     }
 
@@ -100,16 +166,97 @@ class AnvilFile implements Closeable {
         return x + (32 * z);
     }
 
+    ChunkCoordinate getChunkCoordinate(int index) {
+        return new ChunkCoordinate(minX + (index & 0x1F), minZ + (index >> 5));
+    }
+
+    boolean hasChunk(int index) {
+        return offsets[index] != 0 && sizes[index] != 0;
+    }
+
+    void getPresence(byte[] present) {
+        Arrays.fill(present, (byte) 0);
+        for (int i = 0; i < 1024; i++) {
+            if (hasChunk(i))
+                present[i >> 3] |= (byte) (1 << (i & 7));
+        }
+    }
+
+    int getSector(ChunkCoordinate coordinate) {
+        return offsets[getOffset(coordinate)];
+    }
+
+    int getEditTime(int index) {
+        return editTimes[index];
+    }
+
+    int getGeneration(ChunkCoordinate coordinate) {
+        return generations.get(getOffset(coordinate));
+    }
+
+    /**
+     * Wait until no write to a chunk is in progress, and return its generation.
+     */
+    private int getStableGeneration(int offset) {
+        int generation;
+        while (((generation = generations.get(offset)) & 1) != 0) {
+            // not waiting on the lock, since the caller may hold the lock of another file
+            Thread.yield();
+        }
+        return generation;
+    }
+
+    /**
+     * Mark a chunk as being changed. Must be called while synchronized on this file, before the mcc file or header of
+     * the chunk are touched, and followed by {@link #endChange(int)}.
+     */
+    private void beginChange(int offset) {
+        generations.incrementAndGet(offset);
+    }
+
+    private void endChange(int offset) {
+        generations.incrementAndGet(offset);
+    }
+
     public ChunkData read(ChunkCoordinate coordinate) throws IOException {
+        if (metrics == null)
+            return doRead(coordinate);
+        long start = System.nanoTime();
+        ChunkData data = doRead(coordinate);
+        metrics.chunkRead(coordinate, data == null ? 0 : data.data.length, System.nanoTime() - start);
+        return data;
+    }
+
+    /**
+     * Read a chunk without holding the lock. If the chunk is written while it is being read, what was read may belong to
+     * another chunk that reused its sectors, so the read is repeated until the chunk's generation stays the same.
+     */
+    private ChunkData doRead(ChunkCoordinate coordinate) throws IOException {
         int offset = getOffset(coordinate);
-        int readFrom = offsets[offset];
-        int sectorCount = sizes[offset];
+        while (true) {
+            int generation = getStableGeneration(offset);
+            try {
+                ChunkData data = readChunk(coordinate, offsets[offset], sizes[offset], editTimes[offset]);
+                if (generations.get(offset) == generation)
+                    return data;
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                if (generations.get(offset) == generation)
+                    throw e;
+            }
+        }
+    }
+
+    private ChunkData readChunk(ChunkCoordinate coordinate, int readFrom, int sectorCount, int editTime) throws IOException {
         if (readFrom == 0 || sectorCount == 0) {
             return null;
         }
-        raf.seek(((long) readFrom) * 4096L);
-        int length = (raf.read() << 24) | (raf.read() << 16) | (raf.read() << 8) | raf.read();
-        int compressionType = raf.read();
+        long position = ((long) readFrom) * 4096L;
+        ByteBuffer header = ByteBuffer.allocate(5);
+        AnvilUtil.readFully(channel, header, position);
+        int length = header.getInt(0);
+        int compressionType = header.get(4) & 0xff;
         boolean external = false;
         if ((compressionType & 0x80) != 0) {
             external = true;
@@ -118,76 +265,272 @@ class AnvilFile implements Closeable {
         length -= 1;
         byte[] chunkData;
         if (external) {
-            try (FileInputStream in = new FileInputStream(getExternalFile(coordinate))) {
-                chunkData = AnvilUtil.readFully(in);
-            }
+            chunkData = AnvilUtil.readFile(getExternalFile(coordinate));
         } else {
+            if (length < 0 || length > (sectorCount * 4096) - 5)
+                throw new IOException("Corrupt chunk header");
             chunkData = new byte[length];
-            AnvilUtil.readFully(rafIn, chunkData);
+            AnvilUtil.readFully(channel, ByteBuffer.wrap(chunkData), position + 5L);
         }
-        return new ChunkData(chunkData, compressionType, editTimes[offset]);
+        ChunkData data = new ChunkData(chunkData, compressionType, editTime);
+        data.metrics = metrics;
+        return data;
+    }
+
+    /**
+     * Read many chunks with as few reads as possible. Chunks are sorted by their position in the file, and chunks
+     * that are close to each other are read together with a single read. This may run while chunks are being written,
+     * so it works from a copy of the header and falls back to reading a chunk on its own if it changed meanwhile.
+     */
+    public <T extends Map<ChunkCoordinate, ChunkData>> T readMany(Collection<ChunkCoordinate> coordinates, T results) throws IOException {
+        int[] chunkGenerations = new int[1024];
+        int[] sectors = new int[1024];
+        int[] counts = new int[1024];
+        int[] times = new int[1024];
+        List<ChunkCoordinate> chunks = new ArrayList<>(coordinates.size());
+        for (ChunkCoordinate chunk : coordinates) {
+            int offset = getOffset(chunk);
+            chunkGenerations[offset] = getStableGeneration(offset);
+            sectors[offset] = offsets[offset];
+            counts[offset] = sizes[offset];
+            times[offset] = editTimes[offset];
+            if (sectors[offset] != 0 && counts[offset] != 0) {
+                chunks.add(chunk);
+            } else if (generations.get(offset) != chunkGenerations[offset]) {
+                // written while taking the copy, it may exist now
+                putIfPresent(results, chunk, read(chunk));
+            }
+        }
+        chunks.sort((a, b) -> Integer.compare(sectors[getOffset(a)], sectors[getOffset(b)]));
+        int runStart = 0;
+        while (runStart < chunks.size()) {
+            int firstSector = sectors[getOffset(chunks.get(runStart))];
+            int endSector = firstSector + counts[getOffset(chunks.get(runStart))];
+            int runEnd = runStart + 1;
+            while (runEnd < chunks.size()) {
+                int offset = getOffset(chunks.get(runEnd));
+                int chunkEnd = sectors[offset] + counts[offset];
+                if (sectors[offset] > endSector + MAX_READ_GAP_SECTORS || chunkEnd - firstSector > maxReadSectors)
+                    break;
+                endSector = Math.max(endSector, chunkEnd);
+                runEnd += 1;
+            }
+            if (runEnd - runStart == 1) {
+                putIfPresent(results, chunks.get(runStart), read(chunks.get(runStart)));
+            } else {
+                readRun(chunks.subList(runStart, runEnd), chunkGenerations, sectors, times, firstSector, endSector, results);
+            }
+            runStart = runEnd;
+        }
+        return results;
+    }
+
+    private void readRun(List<ChunkCoordinate> chunks, int[] chunkGenerations, int[] sectors, int[] times, int firstSector, int endSector, Map<ChunkCoordinate, ChunkData> results) throws IOException {
+        long start = metrics == null ? 0L : System.nanoTime();
+        long position = ((long) firstSector) * 4096L;
+        ByteBuffer buffer = ByteBuffer.allocate((endSector - firstSector) * 4096);
+        int available = AnvilUtil.readAvailable(channel, buffer, position);
+        long nanosPerChunk = metrics == null ? 0L : (System.nanoTime() - start) / chunks.size();
+        for (ChunkCoordinate chunk : chunks) {
+            int offset = getOffset(chunk);
+            int headerStart = (sectors[offset] - firstSector) * 4096;
+            int length = headerStart + 5 <= available ? buffer.getInt(headerStart) - 1 : -1;
+            int compressionType = headerStart + 5 <= available ? buffer.get(headerStart + 4) & 0xff : 0;
+            if ((compressionType & 0x80) != 0 || length < 0 || headerStart + 5 + length > available
+                    || generations.get(offset) != chunkGenerations[offset]) {
+                // external, doesn't fit in what was read, or written since, fall back to reading it on its own
+                putIfPresent(results, chunk, read(chunk));
+                continue;
+            }
+            byte[] chunkData = Arrays.copyOfRange(buffer.array(), headerStart + 5, headerStart + 5 + length);
+            ChunkData data = new ChunkData(chunkData, compressionType, times[offset]);
+            data.metrics = metrics;
+            if (metrics != null)
+                metrics.chunkRead(chunk, length, nanosPerChunk);
+            results.put(chunk, data);
+        }
+    }
+
+    private static void putIfPresent(Map<ChunkCoordinate, ChunkData> results, ChunkCoordinate chunk, ChunkData data) {
+        // a chunk that was deleted while reading is left out like any other missing chunk
+        if (data != null)
+            results.put(chunk, data);
     }
 
     public void write(ChunkCoordinate coordinate, ChunkData data) throws IOException {
+        if (metrics == null) {
+            doWrite(coordinate, data);
+            return;
+        }
+        long start = System.nanoTime();
+        doWrite(coordinate, data);
+        metrics.chunkWritten(coordinate, data == null ? 0 : data.data.length, System.nanoTime() - start);
+    }
+
+    private void doWrite(ChunkCoordinate coordinate, ChunkData data) throws IOException {
+        if (readOnly)
+            throw new IOException("Opened read only");
         int offset = getOffset(coordinate);
-        int oldSector = offsets[offset];
-        int oldSize = sizes[offset];
-        if (data == null) {
-            if (oldSector != 0 && oldSize != 0) {
-                setUsed(oldSector, oldSize, false);
+        beginChange(offset);
+        try {
+            int oldSector = offsets[offset];
+            int oldSize = sizes[offset];
+            if (data == null) {
+                if (oldSector != 0 && oldSize != 0) {
+                    setUsed(oldSector, oldSize, false);
+                }
+                offsets[offset] = 0;
+                sizes[offset] = 0;
+                editTimes[offset] = 0;
+                writeHeader(offset, 0, 0);
+                deleteExternalFile(coordinate, offset, oldSector);
+            } else {
+                boolean external = false;
+                int newSize = sizeToSectorCount(data.data.length + 5);
+                if (newSize >= externalThreshold) {
+                    newSize = 1;
+                    external = true;
+                } else {
+                    deleteExternalFile(coordinate, offset, oldSector);
+                }
+                long allocationStart = metrics == null ? 0L : System.nanoTime();
+                int newSector = findFreeSpace(newSize);
+                if (metrics != null)
+                    metrics.sectorsAllocated(this.coordinate, newSize, System.nanoTime() - allocationStart);
+                if (oldSector != 0 && oldSize != 0) {
+                    setUsed(oldSector, oldSize, false);
+                }
+                setUsed(newSector, newSize, true);
+                // the length, compression type, data and padding up to the next sector are written with a single write
+                ByteBuffer sectors = ByteBuffer.allocate(newSize * 4096);
+                if (external) {
+                    sectors.putInt(1);
+                    sectors.put((byte) (0x80 | data.compressionType));
+                    long directoryModified = parent.lastModified();
+                    AnvilUtil.writeFile(getExternalFile(coordinate), data.data);
+                    if (index != null)
+                        index.directoryChanged(directoryModified);
+                } else {
+                    sectors.putInt(data.data.length + 1);
+                    sectors.put((byte) data.compressionType);
+                    sectors.put(data.data);
+                }
+                sectors.clear();
+                AnvilUtil.writeFully(channel, sectors, ((long) newSector) * 4096L);
+                writeHeader(offset, (newSector << 8) | newSize, data.editTime);
+                offsets[offset] = newSector;
+                sizes[offset] = newSize;
+                editTimes[offset] = data.editTime;
+                this.external[offset] = external ? EXTERNAL_YES : EXTERNAL_NO;
             }
-            offsets[offset] = 0;
-            sizes[offset] = 0;
-            editTimes[offset] = 0;
-            raf.seek(4 * offset);
-            raf.writeInt(0);
-            raf.seek((4 * offset) + 4096);
-            raf.writeInt(0);
-            getExternalFile(coordinate).delete();
-        } else {
-            boolean external = false;
-            int newSize = sizeToSectorCount(data.data.length + 5);
-            if (newSize >= 256) {
-                newSize = 1;
-                external = true;
+        } finally {
+            endChange(offset);
+        }
+    }
+
+    /**
+     * Copy a chunk from another file as it is stored on disk, without decoding it. Where possible the data is
+     * transferred directly between the files, and the chunk is only published in the header once it is complete. The
+     * source file doesn't need to be locked, if the chunk is written to while it is being copied it is copied again.
+     *
+     * @return false if the chunk does not exist in the source file
+     */
+    boolean copyFrom(AnvilFile source, ChunkCoordinate from, ChunkCoordinate to) throws IOException {
+        if (readOnly)
+            throw new IOException("Opened read only");
+        int sourceOffset = source.getOffset(from);
+        long start = metrics == null ? 0L : System.nanoTime();
+        int offset = getOffset(to);
+        int newSector;
+        int newSize;
+        int storedLength;
+        int editTime;
+        while (true) {
+            // the source is not locked, so it is copied from a snapshot of its header, and copied again if the chunk
+            // was written to meanwhile
+            int sourceGeneration = source.getStableGeneration(sourceOffset);
+            int sourceSector = source.offsets[sourceOffset];
+            int sourceSize = source.sizes[sourceOffset];
+            editTime = source.editTimes[sourceOffset];
+            if (sourceSector == 0 || sourceSize == 0) {
+                if (source.generations.get(sourceOffset) != sourceGeneration)
+                    continue;
+                return false;
+            }
+            long sourcePosition = ((long) sourceSector) * 4096L;
+            ByteBuffer header = ByteBuffer.allocate(5);
+            AnvilUtil.readFully(source.channel, header, sourcePosition);
+            storedLength = header.getInt(0) + 4;
+            newSize = sizeToSectorCount(storedLength);
+            if ((header.get(4) & 0x80) != 0 || storedLength < 5 || newSize > sourceSize || newSize >= externalThreshold) {
+                // external chunks and chunks that need to become external go through the normal path
+                ChunkData data = source.read(from);
+                if (data == null)
+                    return false;
+                write(to, data);
+                return true;
+            }
+            newSector = findFreeSpace(newSize);
+            long position = ((long) newSector) * 4096L;
+            long copied = 0L;
+            while (copied < storedLength) {
+                channel.position(position + copied);
+                long transferred = source.channel.transferTo(sourcePosition + copied, storedLength - copied, channel);
+                if (transferred <= 0L)
+                    throw new IOException("Unexpected end of chunk data");
+                copied += transferred;
             }
-            int newSector = findFreeSpace(newSize);
+            if (source.generations.get(sourceOffset) == sourceGeneration)
+                break;
+            // nothing points to the sectors that were copied into yet, so they can simply be copied into again
+        }
+        if (metrics != null)
+            metrics.sectorsAllocated(coordinate, newSize, System.nanoTime() - start);
+        long position = ((long) newSector) * 4096L;
+        AnvilUtil.writeZeroes(channel, position + storedLength, (newSize * 4096L) - storedLength);
+        int oldSector = offsets[offset];
+        int oldSize = sizes[offset];
+        beginChange(offset);
+        try {
+            writeHeader(offset, (newSector << 8) | newSize, editTime);
+            deleteExternalFile(to, offset, oldSector);
             if (oldSector != 0 && oldSize != 0) {
                 setUsed(oldSector, oldSize, false);
             }
             setUsed(newSector, newSize, true);
-            long writeTo = ((long) newSector) * 4096L;
-            if (raf.length() < writeTo)
-                raf.setLength(writeTo);
-            raf.seek(writeTo);
-            if (external) {
-                raf.writeInt(1);
-                raf.write(0x80 | data.compressionType);
-                try (FileOutputStream out = new FileOutputStream(getExternalFile(coordinate))) {
-                    out.write(data.data);
-                }
-            } else {
-                getExternalFile(coordinate).delete();
-                raf.writeInt(data.data.length + 1);
-                raf.write(data.compressionType);
-                raf.write(data.data);
-            }
-            long currentLength = raf.length();
-            long mod4096 = (currentLength % 4096L);
-            if (mod4096 != 0L) {
-                long newLength = currentLength + (4096L - mod4096);
-                raf.setLength(newLength);
-            }
-            raf.seek(4 * offset);
-            raf.write((newSector >> 16) & 0xff);
-            raf.write((newSector >> 8) & 0xff);
-            raf.write(newSector & 0xff);
-            raf.write(newSize);
-            raf.seek((4 * offset) + 4096);
-            raf.writeInt(data.editTime);
             offsets[offset] = newSector;
             sizes[offset] = newSize;
-            editTimes[offset] = data.editTime;
+            editTimes[offset] = editTime;
+            external[offset] = EXTERNAL_NO;
+        } finally {
+            endChange(offset);
+        }
+        if (metrics != null)
+            metrics.chunkWritten(to, storedLength - 5, System.nanoTime() - start);
+        return true;
+    }
+
+    private void writeHeader(int offset, int location, int editTime) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(4);
+        entry.putInt(0, location);
+        AnvilUtil.writeFully(channel, entry, 4L * offset);
+        entry.clear();
+        entry.putInt(0, editTime);
+        AnvilUtil.writeFully(channel, entry, (4L * offset) + 4096L);
+    }
+
+    private void deleteExternalFile(ChunkCoordinate coordinate, int offset, int oldSector) throws IOException {
+        if (external[offset] == EXTERNAL_UNKNOWN) {
+            ByteBuffer compressionType = ByteBuffer.allocate(1);
+            AnvilUtil.readFully(channel, compressionType, (((long) oldSector) * 4096L) + 4L);
+            external[offset] = (compressionType.get(0) & 0x80) != 0 ? EXTERNAL_YES : EXTERNAL_NO;
+        }
+        if (external[offset] == EXTERNAL_YES) {
+            long directoryModified = parent.lastModified();
+            getExternalFile(coordinate).delete();
+            if (index != null)
+                index.directoryChanged(directoryModified);
+            external[offset] = EXTERNAL_NO;
         }
     }
 
@@ -198,7 +541,11 @@ class AnvilFile implements Closeable {
     @Override
     public void close() throws IOException {
         try {
-            raf.close();
+            if (raf != null) {
+                raf.close();
+            } else {
+                channel.close();
+            }
         } catch (Exception e) {
         }
     }
@@ -216,13 +563,17 @@ class AnvilFile implements Closeable {
     }
 
     public void eraseFreeSpace() throws IOException {
+        if (readOnly)
+            throw new IOException("Opened read only");
         SpaceList usedSpace = new SpaceList();
         usedSpace.add(0, 8192L);
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
         for (ChunkCoordinate chunk : getChunks(new ArrayList<>(), true)) {
             int sector = offsets[getOffset(chunk)];
             long start = (sector) * 4096L;
-            raf.seek(start);
-            int length = raf.readInt();
+            lengthBuffer.clear();
+            AnvilUtil.readFully(channel, lengthBuffer, start);
+            int length = lengthBuffer.getInt(0);
             usedSpace.add(start, length + 4);
         }
         SpaceList freeSpace = usedSpace.flip();
@@ -235,11 +586,9 @@ class AnvilFile implements Closeable {
                     endOfFile = endOfMeaningfulData + (4096L - mod4096);
                 }
                 raf.setLength(endOfFile);
-                raf.seek(endOfMeaningfulData);
-                AnvilUtil.writeZeroes(rafOut, endOfFile - endOfMeaningfulData);
+                AnvilUtil.writeZeroes(channel, endOfMeaningfulData, endOfFile - endOfMeaningfulData);
             } else {
-                raf.seek(space.offset);
-                AnvilUtil.writeZeroes(rafOut, space.length);
+                AnvilUtil.writeZeroes(channel, space.offset, space.length);
             }
         }
     }
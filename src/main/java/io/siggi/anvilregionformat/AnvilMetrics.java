@@ -0,0 +1,85 @@
+package io.siggi.anvilregionformat;
+
+/**
+ * Receives measurements of the IO performed by an AnvilRegion. All methods do nothing by default, so implementations
+ * only need to override the ones they're interested in. Methods are called on the thread performing the operation
+ * and should return quickly. Durations are in nanoseconds.
+ *
+ * @see AnvilRegion#setMetrics(AnvilMetrics)
+ */
+public interface AnvilMetrics {
+    /**
+     * Called when an mca file was already open.
+     *
+     * @param coordinate the coordinate of the mca file
+     */
+    default void fileCacheHit(AnvilCoordinate coordinate) {
+    }
+
+    /**
+     * Called when an mca file was opened because it was not already open.
+     *
+     * @param coordinate the coordinate of the mca file
+     * @param nanos      the time it took to open the file and read its header
+     */
+    default void fileOpened(AnvilCoordinate coordinate, long nanos) {
+    }
+
+    /**
+     * Called when an mca file was closed to stay within the maximum number of open files.
+     *
+     * @param coordinate the coordinate of the mca file
+     */
+    default void fileEvicted(AnvilCoordinate coordinate) {
+    }
+
+    /**
+     * Called when a chunk was read.
+     *
+     * @param coordinate the coordinate of the chunk
+     * @param bytes      the size of the chunk data, or 0 if the chunk does not exist
+     * @param nanos      the time it took to read the chunk
+     */
+    default void chunkRead(ChunkCoordinate coordinate, int bytes, long nanos) {
+    }
+
+    /**
+     * Called when a chunk was written or deleted.
+     *
+     * @param coordinate the coordinate of the chunk
+     * @param bytes      the size of the chunk data, or 0 if the chunk was deleted
+     * @param nanos      the time it took to write the chunk
+     */
+    default void chunkWritten(ChunkCoordinate coordinate, int bytes, long nanos) {
+    }
+
+    /**
+     * Called when sectors were allocated in an mca file for a chunk being written.
+     *
+     * @param coordinate  the coordinate of the mca file
+     * @param sectorCount the number of 4 KiB sectors allocated
+     * @param nanos       the time it took to find free space
+     */
+    default void sectorsAllocated(AnvilCoordinate coordinate, int sectorCount, long nanos) {
+    }
+
+    /**
+     * Called when an mca file was compacted.
+     *
+     * @param coordinate the coordinate of the mca file
+     * @param nanos      the time it took to compact the file
+     */
+    default void compacted(AnvilCoordinate coordinate, long nanos) {
+    }
+
+    /**
+     * Called when chunk data read from an AnvilRegion was decompressed.
+     *
+     * @param compressionType   the type of compression, see {@link ChunkData#getCompressionType()}
+     * @param compressedBytes   the size of the compressed data
+     * @param decompressedBytes the size of the decompressed data
+     * @param nanos             the time it took to decompress the data
+     */
+    default void decompressed(int compressionType, int compressedBytes, int decompressedBytes, long nanos) {
+    }
+}
@@ -1,20 +1,48 @@
 package io.siggi.anvilregionformat;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AnvilRegion implements Closeable {
+    private static final int DELTA_MAGIC = 0x41524644; // ARFD
+    private static final int DELTA_VERSION = 1;
+    // how much of the delta may be read ahead of the stream when no memory budget is set
+    private static final long DELTA_READ_AHEAD = 64L * 1024L * 1024L;
+
     private final File root;
-    private final List<AnvilFile> files = new LinkedList<>();
+    private final LinkedList<AnvilFile> files = new LinkedList<>();
     private final int maxCache;
+    private final RegionIndex index;
+    private final boolean readOnly;
+    private int externalThreshold = 256;
+    private AnvilMetrics metrics;
+    private long memoryBudget = 0L;
+    private final PrefetchCache prefetched = new PrefetchCache();
+    private ExecutorService prefetchExecutor;
     private boolean closed = false;
 
     /**
@@ -35,46 +63,454 @@ public class AnvilRegion implements Closeable {
      * @return An AnvilRegion
      */
     public static AnvilRegion open(File f, int maxCache) {
-        return new AnvilRegion(f, maxCache);
+        return open(f, maxCache, false);
+    }
+
+    /**
+     * Open an AnvilRegion (which may or may not yet exist on disk).
+     *
+     * @param f        A directory containing mca files, or an empty directory to start writing mca files into.
+     * @param maxCache The maximum number of mca files to keep an open file descriptor to at a time.
+     * @param useIndex true to keep a persistent index of region files and the chunks present in them, so listing
+     *                 regions and chunks does not require listing the directory or opening every region file. The
+     *                 index is rebuilt automatically if the directory is changed by something else.
+     * @return An AnvilRegion
+     */
+    public static AnvilRegion open(File f, int maxCache, boolean useIndex) {
+        return open(f, maxCache, useIndex, 0L);
+    }
+
+    /**
+     * Open an AnvilRegion (which may or may not yet exist on disk) that keeps its memory usage within a budget, see
+     * {@link #setMemoryBudget(long)}.
+     *
+     * @param f            A directory containing mca files, or an empty directory to start writing mca files into.
+     * @param maxCache     The maximum number of mca files to keep an open file descriptor to at a time.
+     * @param memoryBudget The maximum number of bytes of heap memory to use, or 0 for no limit.
+     * @return An AnvilRegion
+     */
+    public static AnvilRegion open(File f, int maxCache, long memoryBudget) {
+        return open(f, maxCache, false, memoryBudget);
+    }
+
+    /**
+     * Open an AnvilRegion (which may or may not yet exist on disk) that keeps its memory usage within a budget, see
+     * {@link #setMemoryBudget(long)}.
+     *
+     * @param f            A directory containing mca files, or an empty directory to start writing mca files into.
+     * @param maxCache     The maximum number of mca files to keep an open file descriptor to at a time.
+     * @param useIndex     true to keep a persistent index of region files and the chunks present in them, see
+     *                     {@link #open(File, int, boolean)}. The memory used by the index counts towards the budget.
+     * @param memoryBudget The maximum number of bytes of heap memory to use, or 0 for no limit.
+     * @return An AnvilRegion
+     */
+    public static AnvilRegion open(File f, int maxCache, boolean useIndex, long memoryBudget) {
+        return new AnvilRegion(f, maxCache, useIndex, false, memoryBudget);
+    }
+
+    /**
+     * Open an existing AnvilRegion for reading only. Files are opened read only, nothing is ever written to the
+     * directory, and reading is safe from multiple threads at the same time, so it can be used on snapshots and read
+     * only mounts. Any attempt to write throws an IOException.
+     *
+     * @param f A directory containing mca files.
+     * @return An AnvilRegion
+     */
+    public static AnvilRegion openReadOnly(File f) {
+        return openReadOnly(f, 64);
+    }
+
+    /**
+     * Open an existing AnvilRegion for reading only. Files are opened read only, nothing is ever written to the
+     * directory, and reading is safe from multiple threads at the same time, so it can be used on snapshots and read
+     * only mounts. Any attempt to write throws an IOException.
+     *
+     * @param f        A directory containing mca files.
+     * @param maxCache The maximum number of mca files to keep an open file descriptor to at a time.
+     * @return An AnvilRegion
+     */
+    public static AnvilRegion openReadOnly(File f, int maxCache) {
+        return openReadOnly(f, maxCache, 0L);
+    }
+
+    /**
+     * Open an existing AnvilRegion for reading only that keeps its memory usage within a budget, see
+     * {@link #openReadOnly(File, int)} and {@link #setMemoryBudget(long)}.
+     *
+     * @param f            A directory containing mca files.
+     * @param maxCache     The maximum number of mca files to keep an open file descriptor to at a time.
+     * @param memoryBudget The maximum number of bytes of heap memory to use, or 0 for no limit.
+     * @return An AnvilRegion
+     */
+    public static AnvilRegion openReadOnly(File f, int maxCache, long memoryBudget) {
+        return new AnvilRegion(f, maxCache, false, true, memoryBudget);
     }
 
-    private AnvilRegion(File f, int maxCache) {
+    private AnvilRegion(File f, int maxCache, boolean useIndex, boolean readOnly, long memoryBudget) {
         this.root = f;
         this.maxCache = maxCache;
-        if (!root.exists()) root.mkdirs();
+        this.readOnly = readOnly;
+        this.memoryBudget = Math.max(0L, memoryBudget);
+        if (!readOnly && !root.exists()) root.mkdirs();
+        this.index = useIndex ? RegionIndex.load(root) : null;
     }
 
     private AnvilFile getAnvilFile(AnvilCoordinate coordinate, boolean create) throws IOException {
-        if (closed) {
-            throw new IOException("Already closed");
-        }
-        boolean first = true;
-        for (Iterator<AnvilFile> it = files.iterator(); it.hasNext(); ) {
-            AnvilFile thisFile = it.next();
-            if (thisFile.getCoordinate().equals(coordinate)) {
-                if (!first) {
+        synchronized (files) {
+            if (closed) {
+                throw new IOException("Already closed");
+            }
+            boolean first = true;
+            for (Iterator<AnvilFile> it = files.iterator(); it.hasNext(); ) {
+                AnvilFile thisFile = it.next();
+                if (!thisFile.isOpen()) {
+                    // closed by a thread that was interrupted while reading from it
+                    it.remove();
+                    continue;
+                }
+                if (thisFile.getCoordinate().equals(coordinate)) {
+                    if (!first) {
+                        it.remove();
+                        files.add(0, thisFile);
+                    }
+                    if (metrics != null)
+                        metrics.fileCacheHit(coordinate);
+                    return thisFile;
+                }
+                first = false;
+            }
+            File file = getFile(coordinate);
+            boolean exists = index != null ? index.hasRegion(coordinate) : file.exists();
+            if (!exists && !create) return null;
+            if (!exists && readOnly)
+                throw new IOException("Opened read only");
+            long start = metrics == null ? 0L : System.nanoTime();
+            AnvilFile newFile = new AnvilFile(coordinate, root, file, readOnly);
+            newFile.setExternalThreshold(externalThreshold);
+            newFile.setMetrics(metrics);
+            newFile.setIndex(index);
+            newFile.setMaxReadSectors(getMaxReadSectors());
+            if (metrics != null)
+                metrics.fileOpened(coordinate, System.nanoTime() - start);
+            if (!exists && index != null)
+                index.regionCreated(coordinate);
+            files.add(0, newFile);
+            enforceLimits();
+            return newFile;
+        }
+    }
+
+    /**
+     * Get a file and pin it so it isn't closed to make room for other files, allowing it to be used outside the files
+     * lock. Changes to the file must be made while synchronized on it, and it must be released when done.
+     */
+    private AnvilFile acquireAnvilFile(AnvilCoordinate coordinate, boolean create) throws IOException {
+        synchronized (files) {
+            AnvilFile anvilFile = getAnvilFile(coordinate, create);
+            if (anvilFile != null)
+                anvilFile.pin();
+            return anvilFile;
+        }
+    }
+
+    private void releaseAnvilFile(AnvilFile anvilFile) throws IOException {
+        synchronized (files) {
+            anvilFile.unpin();
+            // writes may have grown the file's sector map, and files skipped while pinned may be closed now
+            if (!closed && (memoryBudget > 0L || files.size() > maxCache))
+                enforceLimits();
+        }
+    }
+
+    /**
+     * Close the least recently used files until both the maximum number of open files and the memory budget are
+     * respected, and give whatever is left of the memory budget to the prefetch cache. Pinned files and the most
+     * recently used file, which the caller may be about to use, are never closed. The caller must hold the files lock.
+     */
+    private void enforceLimits() throws IOException {
+        long fileMemory = 0L;
+        for (AnvilFile file : files) {
+            fileMemory += file.getMemoryUsage();
+        }
+        long available = memoryBudget - (getMaxReadSectors() * 4096L);
+        if (index != null)
+            available -= index.getMemoryUsage();
+        while (files.size() > maxCache || (memoryBudget > 0L && files.size() > 1 && fileMemory > available)) {
+            AnvilFile remove = null;
+            for (Iterator<AnvilFile> it = files.descendingIterator(); it.hasNext(); ) {
+                AnvilFile file = it.next();
+                if (!file.isPinned() && file != files.getFirst()) {
+                    // files that are being used outside the lock are closed once they are released instead
                     it.remove();
-                    files.add(0, thisFile);
+                    remove = file;
+                    break;
                 }
-                return thisFile;
             }
-            first = false;
+            if (remove == null)
+                break;
+            fileMemory -= remove.getMemoryUsage();
+            closeFile(remove);
+            if (metrics != null)
+                metrics.fileEvicted(remove.getCoordinate());
+        }
+        prefetched.setMaxBytes(memoryBudget > 0L ? Math.max(0L, available - fileMemory) : Long.MAX_VALUE);
+    }
+
+    private int getMaxReadSectors() {
+        if (memoryBudget <= 0L)
+            return 256;
+        // batched reads may use up to a sixteenth of the budget for their read buffer
+        return (int) Math.max(1L, Math.min(256L, memoryBudget / 16L / 4096L));
+    }
+
+    /**
+     * Limit the heap memory held by this AnvilRegion between calls. The budget covers the state of open mca files,
+     * prefetched chunks, the region index and the read buffer used by {@link #readMany(Collection, Map)}, and is
+     * checked again whenever a write, copy or maintenance operation finishes with a file. When it is exceeded,
+     * prefetched chunks are discarded first, then the least recently used mca files are closed. At least one mca file
+     * is always kept open, as are files that are in use by another thread. Prefetched chunks are also discarded by the
+     * garbage collector when the heap runs low, regardless of the budget.
+     * <p>
+     * Buffers that only live for the duration of a call are not counted: the chunk data passed to or returned from a
+     * call, the buffer a chunk is written from (up to the external threshold, 1 MiB by default), and the region
+     * records that {@link #exportChanges(int, OutputStream)} reads ahead, which it limits to what is left of the budget
+     * when it starts.
+     *
+     * @param memoryBudget the maximum number of bytes of heap memory to use, or 0 for no limit
+     * @throws IOException if an IO error occurs while closing files to get within the budget
+     */
+    public void setMemoryBudget(long memoryBudget) throws IOException {
+        synchronized (files) {
+            this.memoryBudget = Math.max(0L, memoryBudget);
+            for (AnvilFile file : files) {
+                file.setMaxReadSectors(getMaxReadSectors());
+            }
+            enforceLimits();
+        }
+    }
+
+    /**
+     * Get an estimate of the heap memory currently used by this AnvilRegion, for comparison with the budget set with
+     * {@link #setMemoryBudget(long)}.
+     *
+     * @return the estimated memory usage in bytes
+     */
+    public long getMemoryUsage() {
+        long usage = prefetched.getMemoryUsage();
+        synchronized (files) {
+            for (AnvilFile file : files) {
+                usage += file.getMemoryUsage();
+            }
+            if (index != null)
+                usage += index.getMemoryUsage();
+        }
+        return usage;
+    }
+
+    /**
+     * Run an operation against the file of a region without holding the files lock. If another thread evicts the file
+     * while the operation is using it, the operation is run again against the reopened file, so operations must not
+     * publish anything until they are done with the file.
+     *
+     * @return the result of the operation, or null if the region does not exist
+     */
+    private <T> T withAnvilFile(AnvilCoordinate coordinate, FileOperation<T> operation) throws IOException {
+        while (true) {
+            AnvilFile anvilFile = getAnvilFile(coordinate, false);
+            if (anvilFile == null)
+                return null;
+            try {
+                return operation.run(anvilFile);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // another thread evicted the file while we were using it, try again
+                if (anvilFile.isOpen())
+                    throw e;
+            }
         }
-        File file = getFile(coordinate);
-        if (!file.exists() && !create) return null;
-        AnvilFile newFile = new AnvilFile(coordinate, root, file);
-        files.add(0, newFile);
-        while (files.size() > maxCache) {
-            AnvilFile remove = files.remove(files.size() - 1);
-            remove.close();
+    }
+
+    /**
+     * Find a file that is already open, without opening it. The caller must hold the files lock.
+     */
+    private AnvilFile getOpenAnvilFile(AnvilCoordinate coordinate) {
+        for (AnvilFile file : files) {
+            if (file.getCoordinate().equals(coordinate))
+                return file;
         }
-        return newFile;
+        return null;
+    }
+
+    private void closeFile(AnvilFile file) throws IOException {
+        if (index != null)
+            index.update(file, getFile(file.getCoordinate()));
+        file.close();
     }
 
     private File getFile(AnvilCoordinate coordinate) {
         return new File(root, "r." + coordinate.x + "." + coordinate.z + ".mca");
     }
 
+    /**
+     * Copy every chunk from another AnvilRegion into this one, see
+     * {@link #copyFrom(AnvilRegion, Collection, int, int)}.
+     *
+     * @param source  the AnvilRegion to copy chunks from, which may be opened read only
+     * @param offsetX the number of chunks to move each chunk along the X axis
+     * @param offsetZ the number of chunks to move each chunk along the Z axis
+     * @return the number of chunks copied
+     * @throws IOException if an IO error occurs
+     */
+    public int copyFrom(AnvilRegion source, int offsetX, int offsetZ) throws IOException {
+        List<ChunkCoordinate> chunks = new ArrayList<>();
+        for (AnvilCoordinate region : source.getRegions(new ArrayList<>())) {
+            source.getChunks(region, chunks, true);
+        }
+        return copyFrom(source, chunks, offsetX, offsetZ);
+    }
+
+    /**
+     * Copy chunks from another AnvilRegion into this one, optionally moving them by an offset. This can be used to
+     * merge worlds, extract an area, or relocate a world. The chunks are copied as they are stored on disk without
+     * being decompressed, directly from file to file where the operating system supports it, and in the order they
+     * are stored in the source files. Each destination mca file is copied on its own thread, so copies that span many
+     * regions run in parallel. Chunks that do not exist in the source are skipped, and the edit times of the copied
+     * chunks are preserved.
+     *
+     * @param source      the AnvilRegion to copy chunks from, which may be opened read only but must not be this
+     *                    AnvilRegion
+     * @param coordinates the coordinates of the chunks to copy, in the source
+     * @param offsetX     the number of chunks to move each chunk along the X axis
+     * @param offsetZ     the number of chunks to move each chunk along the Z axis
+     * @return the number of chunks copied
+     * @throws IOException if an IO error occurs
+     */
+    public int copyFrom(AnvilRegion source, Collection<ChunkCoordinate> coordinates, int offsetX, int offsetZ) throws IOException {
+        if (source == this)
+            throw new IllegalArgumentException("Can't copy chunks within the same AnvilRegion");
+        Map<AnvilCoordinate, Map<AnvilCoordinate, List<ChunkCoordinate>>> byRegion = new HashMap<>();
+        for (ChunkCoordinate coordinate : coordinates) {
+            AnvilCoordinate destination = new ChunkCoordinate(coordinate.x + offsetX, coordinate.z + offsetZ).toAnvilCoordinate();
+            byRegion.computeIfAbsent(destination, k -> new HashMap<>())
+                    .computeIfAbsent(coordinate.toAnvilCoordinate(), k -> new ArrayList<>())
+                    .add(coordinate);
+        }
+        if (byRegion.size() == 1) {
+            Map.Entry<AnvilCoordinate, Map<AnvilCoordinate, List<ChunkCoordinate>>> entry = byRegion.entrySet().iterator().next();
+            return copyRegion(source, entry.getKey(), entry.getValue(), offsetX, offsetZ, new AtomicBoolean());
+        }
+        // every destination file is copied by its own task, so separate files are written in parallel
+        int threads = Math.min(byRegion.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = newWorkerPool(threads, "AnvilRegion copy ");
+        AtomicBoolean failed = new AtomicBoolean();
+        try {
+            List<Future<Integer>> tasks = new ArrayList<>(byRegion.size());
+            for (Map.Entry<AnvilCoordinate, Map<AnvilCoordinate, List<ChunkCoordinate>>> entry : byRegion.entrySet()) {
+                tasks.add(executor.submit(() -> {
+                    try {
+                        return copyRegion(source, entry.getKey(), entry.getValue(), offsetX, offsetZ, failed);
+                    } catch (IOException | RuntimeException e) {
+                        // stop the other tasks, but let them finish the chunk they are copying
+                        failed.set(true);
+                        throw e;
+                    }
+                }));
+            }
+            int copied = 0;
+            IOException exception = null;
+            for (Future<Integer> task : tasks) {
+                try {
+                    copied += getResult(task);
+                } catch (IOException e) {
+                    if (exception == null)
+                        exception = e;
+                }
+            }
+            if (exception != null)
+                throw exception;
+            return copied;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private int copyRegion(AnvilRegion source, AnvilCoordinate destination, Map<AnvilCoordinate, List<ChunkCoordinate>> sourceRegions, int offsetX, int offsetZ, AtomicBoolean failed) throws IOException {
+        AnvilFile destinationFile = null;
+        try {
+            int copied = 0;
+            for (Map.Entry<AnvilCoordinate, List<ChunkCoordinate>> entry : sourceRegions.entrySet()) {
+                AnvilFile sourceFile = source.getAnvilFile(entry.getKey(), false);
+                if (sourceFile == null)
+                    continue;
+                if (destinationFile == null)
+                    destinationFile = acquireAnvilFile(destination, true);
+                List<ChunkCoordinate> chunks = entry.getValue();
+                // sorted by where they were when copying started, the source may be written to while it is copied
+                Map<ChunkCoordinate, Integer> sectors = new HashMap<>();
+                for (ChunkCoordinate chunk : chunks)
+                    sectors.put(chunk, sourceFile.getSector(chunk));
+                chunks.sort((a, b) -> Integer.compare(sectors.get(a), sectors.get(b)));
+                for (ChunkCoordinate chunk : chunks) {
+                    if (failed.get())
+                        return copied;
+                    if (copyChunk(source, destinationFile, chunk, new ChunkCoordinate(chunk.x + offsetX, chunk.z + offsetZ)))
+                        copied += 1;
+                }
+            }
+            return copied;
+        } finally {
+            if (destinationFile != null)
+                releaseAnvilFile(destinationFile);
+        }
+    }
+
+    private boolean copyChunk(AnvilRegion source, AnvilFile destinationFile, ChunkCoordinate from, ChunkCoordinate to) throws IOException {
+        Boolean copied = source.withAnvilFile(from.toAnvilCoordinate(), sourceFile -> {
+            synchronized (destinationFile) {
+                return destinationFile.copyFrom(sourceFile, from, to);
+            }
+        });
+        if (copied == null)
+            return false;
+        forgetPrefetched(to);
+        return copied;
+    }
+
+    /**
+     * Set the size at which chunks are stored in a separate mcc file instead of inside the mca file. Chunks of 256
+     * sectors (1 MiB) or more must always be stored externally since the mca format can't address them, but a lower
+     * threshold may be used to keep large chunks from fragmenting the mca files.
+     *
+     * @param sectorCount the size in 4 KiB sectors at which chunks are stored externally, between 1 and 256
+     */
+    public void setExternalThreshold(int sectorCount) {
+        if (sectorCount < 1 || sectorCount > 256)
+            throw new IllegalArgumentException("External threshold must be between 1 and 256 sectors");
+        synchronized (files) {
+            this.externalThreshold = sectorCount;
+            for (AnvilFile file : files) {
+                file.setExternalThreshold(sectorCount);
+            }
+        }
+    }
+
+    /**
+     * Set the listener that receives measurements of the IO performed by this AnvilRegion. A listener that emits JDK
+     * Flight Recorder events is available in the separate jfr module, since JFR requires a newer Java version.
+     *
+     * @param metrics the listener, or null to stop collecting measurements
+     * @see HistogramAnvilMetrics
+     */
+    public void setMetrics(AnvilMetrics metrics) {
+        synchronized (files) {
+            this.metrics = metrics;
+            for (AnvilFile file : files) {
+                file.setMetrics(metrics);
+            }
+        }
+    }
+
     /**
      * Read ChunkData from a coordinate.
      *
@@ -83,10 +519,138 @@ public class AnvilRegion implements Closeable {
      * @throws IOException if an IO error occurs
      */
     public ChunkData read(ChunkCoordinate coordinate) throws IOException {
-        AnvilFile anvilFile = getAnvilFile(coordinate.toAnvilCoordinate(), false);
-        if (anvilFile == null)
-            return null;
-        return anvilFile.read(coordinate);
+        ChunkData prefetchedData = prefetched.take(coordinate);
+        if (prefetchedData != null)
+            return prefetchedData;
+        return withAnvilFile(coordinate.toAnvilCoordinate(), anvilFile -> anvilFile.read(coordinate));
+    }
+
+    /**
+     * Read ChunkData from many coordinates at once. Chunks that are stored close to each other in the same mca file
+     * are read with a single read, which is much faster than reading them one at a time when loading an area.
+     *
+     * @param coordinates the coordinates to read from
+     * @param results     an empty map to add the ChunkData to, chunks that do not exist are not added
+     * @param <T>         the type of map to add ChunkData to
+     * @return the map
+     * @throws IOException if an IO error occurs
+     */
+    public <T extends Map<ChunkCoordinate, ChunkData>> T readMany(Collection<ChunkCoordinate> coordinates, T results) throws IOException {
+        Map<AnvilCoordinate, List<ChunkCoordinate>> byRegion = new HashMap<>();
+        for (ChunkCoordinate coordinate : coordinates) {
+            ChunkData data = prefetched.take(coordinate);
+            if (data != null) {
+                results.put(coordinate, data);
+            } else {
+                byRegion.computeIfAbsent(coordinate.toAnvilCoordinate(), k -> new ArrayList<>()).add(coordinate);
+            }
+        }
+        for (Map.Entry<AnvilCoordinate, List<ChunkCoordinate>> entry : byRegion.entrySet()) {
+            Map<ChunkCoordinate, ChunkData> regionResults = withAnvilFile(entry.getKey(),
+                    anvilFile -> anvilFile.readMany(entry.getValue(), new HashMap<>()));
+            if (regionResults != null)
+                results.putAll(regionResults);
+        }
+        return results;
+    }
+
+    /**
+     * Start reading chunks in the background, so that a later {@link #read(ChunkCoordinate)} of one of those chunks
+     * is served from memory. Chunks are read in batches as with {@link #readMany(Collection, Map)}. Prefetched chunks
+     * are kept until they are read, written, or pushed out by newer prefetches, see {@link #setMaxPrefetched(int)}.
+     *
+     * @param coordinates the coordinates of the chunks that are expected to be read soon
+     * @throws IOException if this AnvilRegion is closed
+     */
+    public void prefetch(Collection<ChunkCoordinate> coordinates) throws IOException {
+        Map<AnvilCoordinate, List<ChunkCoordinate>> byRegion = new HashMap<>();
+        for (ChunkCoordinate coordinate : coordinates) {
+            byRegion.computeIfAbsent(coordinate.toAnvilCoordinate(), k -> new ArrayList<>()).add(coordinate);
+        }
+        ExecutorService executor;
+        synchronized (files) {
+            if (closed) {
+                throw new IOException("Already closed");
+            }
+            if (prefetchExecutor == null) {
+                prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "AnvilRegion prefetch " + root.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            executor = prefetchExecutor;
+        }
+        for (Map.Entry<AnvilCoordinate, List<ChunkCoordinate>> entry : byRegion.entrySet()) {
+            executor.execute(() -> prefetchRegion(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Start reading all chunks within a square around a chunk in the background, see
+     * {@link #prefetch(Collection)}.
+     *
+     * @param center the chunk at the center of the square
+     * @param radius the number of chunks to include on each side of the center
+     * @throws IOException if this AnvilRegion is closed
+     */
+    public void prefetch(ChunkCoordinate center, int radius) throws IOException {
+        List<ChunkCoordinate> coordinates = new ArrayList<>();
+        for (int z = center.z - radius; z <= center.z + radius; z++) {
+            for (int x = center.x - radius; x <= center.x + radius; x++) {
+                coordinates.add(new ChunkCoordinate(x, z));
+            }
+        }
+        prefetch(coordinates);
+    }
+
+    private void prefetchRegion(AnvilCoordinate coordinate, List<ChunkCoordinate> chunks) {
+        try {
+            withAnvilFile(coordinate, anvilFile -> {
+                List<ChunkCoordinate> missing = new ArrayList<>(chunks.size());
+                int[] generations = new int[chunks.size()];
+                synchronized (anvilFile) {
+                    for (ChunkCoordinate chunk : chunks) {
+                        if (!prefetched.contains(chunk)) {
+                            generations[missing.size()] = anvilFile.getGeneration(chunk);
+                            missing.add(chunk);
+                        }
+                    }
+                }
+                Map<ChunkCoordinate, ChunkData> results = anvilFile.readMany(missing, new HashMap<>());
+                synchronized (files) {
+                    // chunks written while we were reading are dropped, as is everything if the file was evicted
+                    // since writes to a reopened file can't be seen here
+                    if (getOpenAnvilFile(coordinate) != anvilFile)
+                        return null;
+                    synchronized (anvilFile) {
+                        for (int i = 0; i < missing.size(); i++) {
+                            ChunkCoordinate chunk = missing.get(i);
+                            ChunkData data = results.get(chunk);
+                            if (data != null && anvilFile.getGeneration(chunk) == generations[i])
+                                prefetched.put(chunk, data);
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            // prefetching is only a hint, the chunks will be read again when they are needed
+        }
+    }
+
+    /**
+     * Set the maximum number of prefetched chunks to keep in memory. When more chunks are prefetched, the ones that
+     * were prefetched first are discarded.
+     *
+     * @param maxPrefetched the maximum number of prefetched chunks
+     */
+    public void setMaxPrefetched(int maxPrefetched) {
+        prefetched.setMaxEntries(maxPrefetched);
+    }
+
+    private void forgetPrefetched(ChunkCoordinate coordinate) {
+        prefetched.remove(coordinate);
     }
 
     /**
@@ -97,7 +661,15 @@ public class AnvilRegion implements Closeable {
      * @throws IOException if an IO error occurs
      */
     public void write(ChunkCoordinate coordinate, ChunkData data) throws IOException {
-        getAnvilFile(coordinate.toAnvilCoordinate(), true).write(coordinate, data);
+        AnvilFile anvilFile = acquireAnvilFile(coordinate.toAnvilCoordinate(), true);
+        try {
+            synchronized (anvilFile) {
+                anvilFile.write(coordinate, data);
+            }
+            forgetPrefetched(coordinate);
+        } finally {
+            releaseAnvilFile(anvilFile);
+        }
     }
 
     /**
@@ -107,14 +679,25 @@ public class AnvilRegion implements Closeable {
      */
     @Override
     public void close() throws IOException {
-        closed = true;
-        for (AnvilFile file : files) {
-            try {
-                file.close();
-            } catch (Exception e) {
+        synchronized (files) {
+            closed = true;
+            if (prefetchExecutor != null)
+                prefetchExecutor.shutdown();
+            prefetched.clear();
+            for (AnvilFile file : files) {
+                try {
+                    closeFile(file);
+                } catch (Exception e) {
+                }
+            }
+            files.clear();
+            if (index != null) {
+                try {
+                    index.save();
+                } catch (Exception e) {
+                }
             }
         }
-        files.clear();
     }
 
     /**
@@ -125,23 +708,39 @@ public class AnvilRegion implements Closeable {
      * @return the collection
      */
     public <T extends Collection<AnvilCoordinate>> T getRegions(T coordinates) {
-        for (File file : root.listFiles()) {
+        if (index != null) {
+            synchronized (files) {
+                return index.getRegions(coordinates);
+            }
+        }
+        File[] regionFiles = root.listFiles();
+        if (regionFiles == null) {
+            // a read only region whose directory does not exist has no regions
+            return coordinates;
+        }
+        for (File file : regionFiles) {
             if (file.isDirectory())
                 continue;
-            String name = file.getName();
-            if (!name.startsWith("r.") || !name.endsWith(".mca"))
-                continue;
-            String[] parts = name.split("\\.");
-            if (parts.length != 4)
-                continue;
-            try {
-                coordinates.add(new AnvilCoordinate(Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
-            } catch (Exception e) {
-            }
+            AnvilCoordinate coordinate = parseRegionFileName(file.getName());
+            if (coordinate != null)
+                coordinates.add(coordinate);
         }
         return coordinates;
     }
 
+    static AnvilCoordinate parseRegionFileName(String name) {
+        if (!name.startsWith("r.") || !name.endsWith(".mca"))
+            return null;
+        String[] parts = name.split("\\.");
+        if (parts.length != 4)
+            return null;
+        try {
+            return new AnvilCoordinate(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     /**
      * Get all ChunkCoordinates that exist in an AnvilCoordinate.
      *
@@ -152,6 +751,28 @@ public class AnvilRegion implements Closeable {
      * @return the collection
      */
     public <T extends Collection<ChunkCoordinate>> T getChunks(AnvilCoordinate anvilCoordinate, T coordinates, boolean onlyExisting) throws IOException {
+        if (onlyExisting && index != null) {
+            synchronized (files) {
+                if (getOpenAnvilFile(anvilCoordinate) == null) {
+                    if (!index.hasRegion(anvilCoordinate))
+                        return coordinates;
+                    if (index.getChunks(anvilCoordinate, getFile(anvilCoordinate), coordinates) != null)
+                        return coordinates;
+                }
+            }
+        }
+        if (!onlyExisting && readOnly) {
+            // every coordinate in the region is included whether it exists or not, so there's no need to open the
+            // file, which can't be created in read only mode anyway
+            int minX = anvilCoordinate.x << 5;
+            int minZ = anvilCoordinate.z << 5;
+            for (int z = 0; z < 32; z++) {
+                for (int x = 0; x < 32; x++) {
+                    coordinates.add(new ChunkCoordinate(minX + x, minZ + z));
+                }
+            }
+            return coordinates;
+        }
         AnvilFile anvilFile = getAnvilFile(anvilCoordinate, !onlyExisting);
         if (anvilFile == null)
             return coordinates;
@@ -167,19 +788,28 @@ public class AnvilRegion implements Closeable {
      * @throws IOException if an IO error occurs
      */
     public void compact(AnvilCoordinate coordinate) throws IOException {
+        long start = metrics == null ? 0L : System.nanoTime();
         Map<ChunkCoordinate, ChunkData> chunkData = new HashMap<>();
-        AnvilFile anvilFile = getAnvilFile(coordinate, false);
+        AnvilFile anvilFile = acquireAnvilFile(coordinate, false);
         if (anvilFile == null)
             return;
-        ArrayList<ChunkCoordinate> chunks = anvilFile.getChunks(new ArrayList<>(), true);
-        for (ChunkCoordinate chunk : chunks) {
-            chunkData.put(chunk, anvilFile.read(chunk));
-            anvilFile.write(chunk, null);
-        }
-        anvilFile.eraseFreeSpace();
-        for (ChunkCoordinate chunk : chunks) {
-            anvilFile.write(chunk, chunkData.get(chunk));
+        try {
+            synchronized (anvilFile) {
+                ArrayList<ChunkCoordinate> chunks = anvilFile.getChunks(new ArrayList<>(), true);
+                for (ChunkCoordinate chunk : chunks) {
+                    chunkData.put(chunk, anvilFile.read(chunk));
+                    anvilFile.write(chunk, null);
+                }
+                anvilFile.eraseFreeSpace();
+                for (ChunkCoordinate chunk : chunks) {
+                    anvilFile.write(chunk, chunkData.get(chunk));
+                }
+            }
+        } finally {
+            releaseAnvilFile(anvilFile);
         }
+        if (metrics != null)
+            metrics.compacted(coordinate, System.nanoTime() - start);
     }
 
     /**
@@ -201,8 +831,234 @@ public class AnvilRegion implements Closeable {
      * @throws IOException if an IO error occurs
      */
     public void eraseFreeSpace(AnvilCoordinate coordinate) throws IOException {
-        AnvilFile anvilFile = getAnvilFile(coordinate, false);
-        if (anvilFile != null)
-            anvilFile.eraseFreeSpace();
+        AnvilFile anvilFile = acquireAnvilFile(coordinate, false);
+        if (anvilFile == null)
+            return;
+        try {
+            synchronized (anvilFile) {
+                anvilFile.eraseFreeSpace();
+            }
+        } finally {
+            releaseAnvilFile(anvilFile);
+        }
+    }
+
+    /**
+     * Write every chunk that was edited after a point in time to a delta stream, which can later be merged into another
+     * AnvilRegion with {@link #applyChanges(InputStream)}. Chunk data is copied as-is without being decompressed. For
+     * every region file, the delta also records which chunks are present, so chunks deleted since the last backup are
+     * deleted when the delta is applied. Region files are read in parallel and written to the stream in order.
+     * <p>
+     * Only regions that have a file when the export starts are included. If a whole region file was deleted since the
+     * last backup, its chunks are not deleted when the delta is applied; export that region with
+     * {@link #exportChanges(AnvilCoordinate, int, OutputStream)} to record that it no longer has any chunks.
+     *
+     * @param since the edit time to compare against, only chunks edited after this time are included, see
+     *              {@link ChunkData#getEditTime()} for more info
+     * @param out   the stream to write the delta to
+     * @return the number of chunks written to the delta
+     * @throws IOException if an IO error occurs
+     */
+    public int exportChanges(int since, OutputStream out) throws IOException {
+        return exportChanges(getRegions(new ArrayList<>()), since, out);
+    }
+
+    /**
+     * Write every chunk at an AnvilCoordinate that was edited after a point in time to a delta stream, which can later
+     * be merged into another AnvilRegion with {@link #applyChanges(InputStream)}. If the region has no file, the delta
+     * records that it has no chunks, so applying it deletes the chunks of that region.
+     *
+     * @param coordinate the anvil coordinate to export changes from
+     * @param since      the edit time to compare against, only chunks edited after this time are included
+     * @param out        the stream to write the delta to
+     * @return the number of chunks written to the delta
+     * @throws IOException if an IO error occurs
+     */
+    public int exportChanges(AnvilCoordinate coordinate, int since, OutputStream out) throws IOException {
+        return exportChanges(Collections.singletonList(coordinate), since, out);
+    }
+
+    private int exportChanges(Collection<AnvilCoordinate> regions, int since, OutputStream out) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(DELTA_MAGIC);
+        dataOut.writeInt(DELTA_VERSION);
+        dataOut.writeInt(since);
+        int chunkCount = 0;
+        if (regions.size() <= 1) {
+            for (AnvilCoordinate coordinate : regions) {
+                chunkCount += exportRegion(coordinate, since, dataOut);
+            }
+        } else {
+            // regions are read in parallel into memory, and written to the stream in order as they finish. No more regions
+            // are started while the records waiting to be written add up to the limit, so at most the limit plus the
+            // regions that are being read are held in memory.
+            int threads = Math.min(regions.size(), Runtime.getRuntime().availableProcessors());
+            long readAhead = memoryBudget > 0L ? Math.max(0L, memoryBudget - getMemoryUsage()) : DELTA_READ_AHEAD;
+            AtomicLong buffered = new AtomicLong();
+            ExecutorService executor = newWorkerPool(threads, "AnvilRegion export ");
+            ArrayDeque<Future<RegionDelta>> pending = new ArrayDeque<>();
+            try {
+                Iterator<AnvilCoordinate> it = regions.iterator();
+                while (it.hasNext() || !pending.isEmpty()) {
+                    while (it.hasNext() && (pending.isEmpty() || (pending.size() < threads * 2 && buffered.get() < readAhead))) {
+                        AnvilCoordinate coordinate = it.next();
+                        pending.add(executor.submit(() -> {
+                            RegionDelta delta = new RegionDelta();
+                            delta.chunkCount = exportRegion(coordinate, since, new DataOutputStream(delta.bytes));
+                            buffered.addAndGet(delta.bytes.size());
+                            return delta;
+                        }));
+                    }
+                    RegionDelta delta = getResult(pending.remove());
+                    delta.bytes.writeTo(dataOut);
+                    buffered.addAndGet(-delta.bytes.size());
+                    chunkCount += delta.chunkCount;
+                }
+            } finally {
+                for (Future<RegionDelta> future : pending) {
+                    future.cancel(false);
+                }
+                executor.shutdown();
+            }
+        }
+        dataOut.writeBoolean(false);
+        dataOut.flush();
+        return chunkCount;
+    }
+
+    private int exportRegion(AnvilCoordinate coordinate, int since, DataOutputStream dataOut) throws IOException {
+        AnvilFile anvilFile = acquireAnvilFile(coordinate, false);
+        if (anvilFile == null) {
+            // the region has no chunks, possibly because its file was deleted since it was listed
+            dataOut.writeBoolean(true);
+            dataOut.writeInt(coordinate.x);
+            dataOut.writeInt(coordinate.z);
+            dataOut.write(new byte[128]);
+            dataOut.writeInt(0);
+            return 0;
+        }
+        try {
+            synchronized (anvilFile) {
+                List<ChunkCoordinate> changed = new ArrayList<>();
+                byte[] present = new byte[128];
+                for (int i = 0; i < 1024; i++) {
+                    if (!anvilFile.hasChunk(i))
+                        continue;
+                    present[i >> 3] |= (byte) (1 << (i & 7));
+                    // edit times are unsigned so that the comparison keeps working after 2038
+                    if (Integer.compareUnsigned(anvilFile.getEditTime(i), since) > 0) {
+                        changed.add(anvilFile.getChunkCoordinate(i));
+                    }
+                }
+                dataOut.writeBoolean(true);
+                dataOut.writeInt(coordinate.x);
+                dataOut.writeInt(coordinate.z);
+                dataOut.write(present);
+                dataOut.writeInt(changed.size());
+                for (ChunkCoordinate chunk : changed) {
+                    ChunkData data = anvilFile.read(chunk);
+                    dataOut.writeShort((chunk.x & 0x1F) + (32 * (chunk.z & 0x1F)));
+                    dataOut.writeByte(data.compressionType);
+                    dataOut.writeInt(data.editTime);
+                    dataOut.writeInt(data.data.length);
+                    dataOut.write(data.data);
+                }
+                return changed.size();
+            }
+        } finally {
+            releaseAnvilFile(anvilFile);
+        }
+    }
+
+    private ExecutorService newWorkerPool(int threads, String name) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + root.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Merge a delta stream created with {@link #exportChanges(int, OutputStream)} into this AnvilRegion. Chunks in the
+     * delta overwrite the chunks in this AnvilRegion unless those were edited more recently, and chunks that were no
+     * longer present when the delta was exported are deleted unless they were edited after the point in time the delta
+     * was exported since. This way, applying an older delta after a newer one doesn't roll any chunks back.
+     *
+     * @param in the stream to read the delta from
+     * @return the number of chunks written from the delta
+     * @throws IOException if an IO error occurs, or if the stream is not a valid delta
+     */
+    public int applyChanges(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        if (dataIn.readInt() != DELTA_MAGIC)
+            throw new IOException("Not an anvil delta");
+        int version = dataIn.readInt();
+        if (version != DELTA_VERSION)
+            throw new IOException("Unsupported anvil delta version " + version);
+        int since = dataIn.readInt();
+        int chunkCount = 0;
+        byte[] present = new byte[128];
+        while (dataIn.readBoolean()) {
+            AnvilCoordinate coordinate = new AnvilCoordinate(dataIn.readInt(), dataIn.readInt());
+            dataIn.readFully(present);
+            int changedCount = dataIn.readInt();
+            // deleting chunks from a region that doesn't exist has nothing to do, so only changes create the file
+            AnvilFile anvilFile = acquireAnvilFile(coordinate, changedCount > 0);
+            if (anvilFile == null)
+                continue;
+            try {
+                synchronized (anvilFile) {
+                    for (int i = 0; i < 1024; i++) {
+                        if ((present[i >> 3] & (1 << (i & 7))) == 0 && anvilFile.hasChunk(i)
+                                && Integer.compareUnsigned(anvilFile.getEditTime(i), since) <= 0) {
+                            ChunkCoordinate chunk = anvilFile.getChunkCoordinate(i);
+                            anvilFile.write(chunk, null);
+                            forgetPrefetched(chunk);
+                        }
+                    }
+                    for (int i = 0; i < changedCount; i++) {
+                        int index = dataIn.readUnsignedShort();
+                        int compressionType = dataIn.readUnsignedByte();
+                        int editTime = dataIn.readInt();
+                        int length = dataIn.readInt();
+                        if (index >= 1024 || length < 0)
+                            throw new IOException("Corrupt anvil delta");
+                        byte[] data = new byte[length];
+                        dataIn.readFully(data);
+                        if (anvilFile.hasChunk(index) && Integer.compareUnsigned(anvilFile.getEditTime(index), editTime) > 0)
+                            continue;
+                        ChunkCoordinate chunk = anvilFile.getChunkCoordinate(index);
+                        anvilFile.write(chunk, new ChunkData(data, compressionType, editTime));
+                        forgetPrefetched(chunk);
+                        chunkCount += 1;
+                    }
+                }
+            } finally {
+                releaseAnvilFile(anvilFile);
+            }
+        }
+        return chunkCount;
+    }
+
+    private interface FileOperation<T> {
+        T run(AnvilFile anvilFile) throws IOException;
+    }
+
+    private static class RegionDelta {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int chunkCount;
     }
 }
@@ -3,9 +3,13 @@ package io.siggi.anvilregionformat;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.zip.Adler32;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -29,6 +33,50 @@ public class AnvilUtil {
         }
     }
 
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int c = channel.read(buffer, position);
+            if (c == -1)
+                throw new EOFException();
+            position += c;
+        }
+    }
+
+    static int readAvailable(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            int c = channel.read(buffer, position + read);
+            if (c == -1)
+                break;
+            read += c;
+        }
+        return read;
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8)
+                throw new IOException("File too large: " + file);
+            byte[] data = new byte[(int) size];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1)
+                    throw new EOFException();
+            }
+            return data;
+        }
+    }
+
+    static void writeFile(File file, byte[] data) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
     static void copy(InputStream in, OutputStream out) throws IOException {
         byte[] b = new byte[4096];
         int c;
@@ -37,12 +85,21 @@ public class AnvilUtil {
         }
     }
 
-    static void writeZeroes(OutputStream out, long count) throws IOException {
-        byte[] data = new byte[4096];
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    static void writeZeroes(FileChannel channel, long position, long count) throws IOException {
+        ByteBuffer zeroes = ByteBuffer.allocate((int) Math.min(count, 65536L));
         while (count > 0L) {
-            int write = (int) Math.min(count, (long) data.length);
-            out.write(data, 0, write);
-            count -= (long) write;
+            zeroes.clear();
+            zeroes.limit((int) Math.min(count, (long) zeroes.capacity()));
+            int write = zeroes.remaining();
+            writeFully(channel, zeroes, position);
+            position += write;
+            count -= write;
         }
     }
 
@@ -14,6 +14,7 @@ public class ChunkData {
     final byte[] data;
     final int compressionType;
     final int editTime;
+    AnvilMetrics metrics;
 
     ChunkData(byte[] data, int compressionType, int editTime) {
         this.data = data;
@@ -79,6 +80,15 @@ public class ChunkData {
      * @return the decompressed data
      */
     public byte[] getDecompressedData() {
+        if (metrics == null)
+            return decompress();
+        long start = System.nanoTime();
+        byte[] decompressed = decompress();
+        metrics.decompressed(compressionType, data.length, decompressed.length, System.nanoTime() - start);
+        return decompressed;
+    }
+
+    private byte[] decompress() {
         try {
             switch (compressionType) {
                 case COMPRESSION_TYPE_GZIP:
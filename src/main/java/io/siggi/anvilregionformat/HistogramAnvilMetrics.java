@@ -0,0 +1,201 @@
+package io.siggi.anvilregionformat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AnvilMetrics that keeps counters and latency histograms in memory. Latencies are recorded into power of two
+ * buckets, so percentiles are accurate to within a factor of two. Safe to share between threads and AnvilRegions.
+ */
+public class HistogramAnvilMetrics implements AnvilMetrics {
+    private final LongAdder fileCacheHits = new LongAdder();
+    private final LongAdder fileEvictions = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder sectorsAllocated = new LongAdder();
+    private final LongAdder bytesDecompressed = new LongAdder();
+    private final Histogram fileOpens = new Histogram();
+    private final Histogram reads = new Histogram();
+    private final Histogram writes = new Histogram();
+    private final Histogram allocations = new Histogram();
+    private final Histogram compactions = new Histogram();
+    private final Histogram decompressions = new Histogram();
+
+    @Override
+    public void fileCacheHit(AnvilCoordinate coordinate) {
+        fileCacheHits.increment();
+    }
+
+    @Override
+    public void fileOpened(AnvilCoordinate coordinate, long nanos) {
+        fileOpens.record(nanos);
+    }
+
+    @Override
+    public void fileEvicted(AnvilCoordinate coordinate) {
+        fileEvictions.increment();
+    }
+
+    @Override
+    public void chunkRead(ChunkCoordinate coordinate, int bytes, long nanos) {
+        bytesRead.add(bytes);
+        reads.record(nanos);
+    }
+
+    @Override
+    public void chunkWritten(ChunkCoordinate coordinate, int bytes, long nanos) {
+        bytesWritten.add(bytes);
+        writes.record(nanos);
+    }
+
+    @Override
+    public void sectorsAllocated(AnvilCoordinate coordinate, int sectorCount, long nanos) {
+        sectorsAllocated.add(sectorCount);
+        allocations.record(nanos);
+    }
+
+    @Override
+    public void compacted(AnvilCoordinate coordinate, long nanos) {
+        compactions.record(nanos);
+    }
+
+    @Override
+    public void decompressed(int compressionType, int compressedBytes, int decompressedBytes, long nanos) {
+        bytesDecompressed.add(decompressedBytes);
+        decompressions.record(nanos);
+    }
+
+    public long getFileCacheHits() {
+        return fileCacheHits.sum();
+    }
+
+    public long getFileEvictions() {
+        return fileEvictions.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getSectorsAllocated() {
+        return sectorsAllocated.sum();
+    }
+
+    public long getBytesDecompressed() {
+        return bytesDecompressed.sum();
+    }
+
+    public Histogram getFileOpens() {
+        return fileOpens;
+    }
+
+    public Histogram getReads() {
+        return reads;
+    }
+
+    public Histogram getWrites() {
+        return writes;
+    }
+
+    public Histogram getAllocations() {
+        return allocations;
+    }
+
+    public Histogram getCompactions() {
+        return compactions;
+    }
+
+    public Histogram getDecompressions() {
+        return decompressions;
+    }
+
+    @Override
+    public String toString() {
+        return "fileCacheHits=" + getFileCacheHits()
+                + " fileEvictions=" + getFileEvictions()
+                + " bytesRead=" + getBytesRead()
+                + " bytesWritten=" + getBytesWritten()
+                + " sectorsAllocated=" + getSectorsAllocated()
+                + " bytesDecompressed=" + getBytesDecompressed()
+                + "\nfileOpens: " + fileOpens
+                + "\nreads: " + reads
+                + "\nwrites: " + writes
+                + "\nallocations: " + allocations
+                + "\ncompactions: " + compactions
+                + "\ndecompressions: " + decompressions;
+    }
+
+    /**
+     * A latency histogram with power of two buckets.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        void record(long nanos) {
+            if (nanos < 0L)
+                nanos = 0L;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos) - (nanos == 0L ? 0 : 1));
+            count.increment();
+            totalNanos.add(nanos);
+        }
+
+        /**
+         * Get the number of recorded operations.
+         *
+         * @return the number of recorded operations
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Get the total time spent in recorded operations.
+         *
+         * @return the total time in nanoseconds
+         */
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        /**
+         * Get an upper bound for a percentile of the recorded latencies.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the upper bound of the bucket the percentile falls in, in nanoseconds, or 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            long total = 0L;
+            long[] counts = new long[64];
+            for (int i = 0; i < 64; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0L)
+                return 0L;
+            long target = (long) Math.ceil(total * (percentile / 100.0));
+            long seen = 0L;
+            for (int i = 0; i < 64; i++) {
+                seen += counts[i];
+                if (seen >= target && counts[i] != 0L)
+                    return i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1L;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            long count = getCount();
+            return "count=" + count
+                    + " mean=" + (count == 0L ? 0L : getTotalNanos() / count) + "ns"
+                    + " p50<=" + getPercentile(50.0) + "ns"
+                    + " p99<=" + getPercentile(99.0) + "ns"
+                    + " max<=" + getPercentile(100.0) + "ns";
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package io.siggi.anvilregionformat;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds prefetched chunks until they are read. Chunks are held through soft references so the garbage collector can
+ * discard them under memory pressure, and the chunks that were prefetched first are discarded first when the cache is
+ * over its entry or byte limit.
+ */
+class PrefetchCache {
+    private static final long ENTRY_OVERHEAD = 128L;
+
+    private final LinkedHashMap<ChunkCoordinate, Entry> entries = new LinkedHashMap<>();
+    private int maxEntries = 1024;
+    private long maxBytes = Long.MAX_VALUE;
+    private long bytes = 0L;
+
+    /**
+     * Remove a chunk from the cache and return it, or null if it is not cached.
+     */
+    synchronized ChunkData take(ChunkCoordinate coordinate) {
+        Entry entry = entries.remove(coordinate);
+        if (entry == null)
+            return null;
+        bytes -= entry.size;
+        return entry.get();
+    }
+
+    synchronized boolean contains(ChunkCoordinate coordinate) {
+        Entry entry = entries.get(coordinate);
+        if (entry != null && entry.get() == null) {
+            entries.remove(coordinate);
+            bytes -= entry.size;
+            return false;
+        }
+        return entry != null;
+    }
+
+    synchronized void put(ChunkCoordinate coordinate, ChunkData data) {
+        Entry entry = new Entry(data);
+        // removed first so that a chunk prefetched again counts as the newest
+        Entry oldEntry = entries.remove(coordinate);
+        if (oldEntry != null)
+            bytes -= oldEntry.size;
+        entries.put(coordinate, entry);
+        bytes += entry.size;
+        trim();
+    }
+
+    synchronized void remove(ChunkCoordinate coordinate) {
+        Entry entry = entries.remove(coordinate);
+        if (entry != null)
+            bytes -= entry.size;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0L;
+    }
+
+    synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        trim();
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * Get an estimate of the heap memory used by the cached chunks, not counting chunks that were already discarded
+     * by the garbage collector.
+     */
+    synchronized long getMemoryUsage() {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.get() == null) {
+                it.remove();
+                bytes -= entry.size;
+            }
+        }
+        return bytes;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<ChunkCoordinate, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            bytes -= it.next().getValue().size;
+            it.remove();
+        }
+    }
+
+    private static class Entry extends SoftReference<ChunkData> {
+        private final long size;
+
+        private Entry(ChunkData data) {
+            super(data);
+            this.size = data.data.length + ENTRY_OVERHEAD;
+        }
+    }
+}
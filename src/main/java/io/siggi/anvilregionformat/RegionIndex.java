@@ -0,0 +1,228 @@
+package io.siggi.anvilregionformat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers which region files exist and which chunks they contain, so they can be listed without opening every file.
+ * The index is considered stale when the modification time of the directory changes, except for changes we make
+ * ourselves. Only the time is compared, so on filesystems with coarse timestamps a file created or deleted by someone
+ * else within the same tick as one of our own changes can go unnoticed until the directory changes again.
+ */
+class RegionIndex {
+    private static final int MAGIC = 0x41524749; // ARGI
+    private static final int VERSION = 2;
+    static final String FILE_NAME = "regions.idx";
+
+    private final File root;
+    private final File file;
+    private final Map<AnvilCoordinate, Entry> entries = new HashMap<>();
+    private long directoryModified = -1L;
+    private boolean dirty = false;
+
+    private RegionIndex(File root) {
+        this.root = root;
+        this.file = new File(root, FILE_NAME);
+    }
+
+    static RegionIndex load(File root) {
+        RegionIndex index = new RegionIndex(root);
+        try {
+            // the index is written in place, so a crash while writing it leaves a mix of old and new entries that
+            // only the checksum at the end can tell apart from a complete index
+            byte[] bytes = AnvilUtil.readFile(index.file);
+            if (bytes.length < 4 || checksum(bytes, bytes.length - 4) != readInt(bytes, bytes.length - 4))
+                throw new IOException("Invalid region index");
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Invalid region index");
+            index.directoryModified = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readLong());
+                AnvilCoordinate coordinate = new AnvilCoordinate(in.readInt(), in.readInt());
+                in.readFully(entry.present);
+                index.entries.put(coordinate, entry);
+            }
+            if (in.available() != 0)
+                throw new IOException("Invalid region index");
+        } catch (IOException e) {
+            index.entries.clear();
+            index.directoryModified = -1L;
+        }
+        index.validate();
+        return index;
+    }
+
+    private static int checksum(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * Rebuild the index if files were created or deleted in the directory since it was last written.
+     */
+    synchronized void validate() {
+        if (root.lastModified() == directoryModified)
+            return;
+        entries.clear();
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File regionFile : files) {
+                AnvilCoordinate coordinate = AnvilRegion.parseRegionFileName(regionFile.getName());
+                if (coordinate == null || regionFile.isDirectory())
+                    continue;
+                Entry entry = new Entry(regionFile.lastModified());
+                try {
+                    readPresence(regionFile, entry.present);
+                } catch (IOException e) {
+                    entry.modified = -1L;
+                }
+                entries.put(coordinate, entry);
+            }
+        }
+        directoryModified = root.lastModified();
+        dirty = true;
+    }
+
+    private static void readPresence(File regionFile, byte[] present) throws IOException {
+        byte[] header = new byte[4096];
+        try (InputStream in = new FileInputStream(regionFile)) {
+            int read = 0;
+            int c;
+            while (read < header.length && (c = in.read(header, read, header.length - read)) != -1) {
+                read += c;
+            }
+            if (read < header.length)
+                return;
+        }
+        for (int i = 0; i < 1024; i++) {
+            int offset = ((header[i * 4] & 0xff) << 16) | ((header[i * 4 + 1] & 0xff) << 8) | (header[i * 4 + 2] & 0xff);
+            int size = header[i * 4 + 3] & 0xff;
+            if (offset != 0 && size != 0)
+                present[i >> 3] |= (byte) (1 << (i & 7));
+        }
+    }
+
+    /**
+     * Record that a region file was just created by us, without treating the directory change as staleness.
+     */
+    synchronized void regionCreated(AnvilCoordinate coordinate) {
+        entries.put(coordinate, new Entry(-1L));
+        directoryModified = root.lastModified();
+        dirty = true;
+    }
+
+    /**
+     * Record that we created or deleted a file in the directory, such as an mcc file, without treating the directory
+     * change as staleness. If the directory had already changed before that, the index stays stale.
+     *
+     * @param previousModified the modification time of the directory from before the change
+     */
+    synchronized void directoryChanged(long previousModified) {
+        if (previousModified == directoryModified)
+            directoryModified = root.lastModified();
+    }
+
+    /**
+     * Record the current chunk presence of an AnvilFile, typically as it is being closed.
+     */
+    synchronized void update(AnvilFile anvilFile, File regionFile) {
+        Entry entry = entries.get(anvilFile.getCoordinate());
+        if (entry == null) {
+            entry = new Entry(-1L);
+            entries.put(anvilFile.getCoordinate(), entry);
+        }
+        anvilFile.getPresence(entry.present);
+        entry.modified = regionFile.lastModified();
+        dirty = true;
+    }
+
+    synchronized <T extends Collection<AnvilCoordinate>> T getRegions(T coordinates) {
+        validate();
+        coordinates.addAll(entries.keySet());
+        return coordinates;
+    }
+
+    synchronized boolean hasRegion(AnvilCoordinate coordinate) {
+        validate();
+        return entries.containsKey(coordinate);
+    }
+
+    /**
+     * Get the chunks present in a region, or null if the entry for the region is out of date.
+     */
+    synchronized <T extends Collection<ChunkCoordinate>> T getChunks(AnvilCoordinate coordinate, File regionFile, T coordinates) {
+        Entry entry = entries.get(coordinate);
+        if (entry == null || entry.modified == -1L || entry.modified != regionFile.lastModified())
+            return null;
+        int minX = coordinate.x << 5;
+        int minZ = coordinate.z << 5;
+        for (int i = 0; i < 1024; i++) {
+            if ((entry.present[i >> 3] & (1 << (i & 7))) != 0) {
+                coordinates.add(new ChunkCoordinate(minX + (i & 0x1F), minZ + (i >> 5)));
+            }
+        }
+        return coordinates;
+    }
+
+    /**
+     * Get an estimate of the heap memory used by the index.
+     */
+    synchronized long getMemoryUsage() {
+        return entries.size() * 256L;
+    }
+
+    synchronized void save() throws IOException {
+        validate();
+        if (!dirty)
+            return;
+        // Only creating the index changes the directory, writing it in place afterwards does not.
+        if (!file.exists())
+            file.createNewFile();
+        directoryModified = root.lastModified();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(directoryModified);
+        out.writeInt(entries.size());
+        for (Map.Entry<AnvilCoordinate, Entry> mapEntry : entries.entrySet()) {
+            out.writeLong(mapEntry.getValue().modified);
+            out.writeInt(mapEntry.getKey().x);
+            out.writeInt(mapEntry.getKey().z);
+            out.write(mapEntry.getValue().present);
+        }
+        out.writeInt(checksum(bytes.toByteArray(), bytes.size()));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(bytes.toByteArray());
+            raf.setLength(raf.getFilePointer());
+        }
+        dirty = false;
+    }
+
+    private static class Entry {
+        private long modified;
+        private final byte[] present = new byte[128];
+
+        private Entry(long modified) {
+            this.modified = modified;
+        }
+    }
+}